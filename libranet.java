@@ -1,14 +1,85 @@
 import java.time.LocalDate;
+import java.time.Month;
+import java.time.Year;
 import java.time.format.DateTimeParseException;
-import java.time.temporal.ChronoUnit;
+import java.text.DecimalFormatSymbols;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 
 // Custom exception for library operations
 class LibraryException extends Exception {
     public LibraryException(String message) {
         super(message);
     }
+
+    // Expected business errors (item not found, not available, bad date) pass
+    // false to skip filling in the stack trace, which dominates their cost
+    public LibraryException(String message, boolean captureStackTrace) {
+        super(message, null, false, captureStackTrace);
+    }
 }
 
 // Interface for playable items
@@ -20,57 +91,183 @@ interface Playable {
 
 // Base abstract class for all library items
 abstract class LibraryItem {
+    // Due dates are kept as epoch days; this marks an item with no due date
+    static final int NO_DUE_DATE = Integer.MIN_VALUE;
+    // What tryReturn gives for an item that is not borrowed; real fines are never negative
+    static final double NOT_BORROWED = -1.0;
+    // What tryParseEpochDay gives for text that is not a usable date
+    static final long INVALID_EPOCH_DAY = Long.MIN_VALUE;
+
+    // Availability and due date share one state word, changed only by compare-and-set,
+    // so borrow and return are atomic without a lock. The low 32 bits hold the due
+    // epoch day, which is kept after a return like the old dueDate field was.
+    private static final long AVAILABLE = 1L << 32;
+    private static final VarHandle STATE;
+
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(LibraryItem.class, "state", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     protected final int id;
     protected final String title;
     protected final String author;
-    protected boolean isAvailable;
-    protected LocalDate dueDate;
+    private volatile long state;
+    // Catalog holding the item, which borrow and return go through so its
+    // availability bitset and due-date index never fall behind the state word
+    private volatile LibraNet owner;
     protected static final double DEFAULT_FINE_RATE = 10.0; 
+    protected static final int LOAN_PERIOD_DAYS = 14; // 2 weeks borrowing period
 
     public LibraryItem(int id, String title, String author) {
         this.id = id;
         this.title = title;
         this.author = author;
-        this.isAvailable = true;
-        this.dueDate = null;
+        this.state = packState(true, NO_DUE_DATE);
     }
 
     // Common operations
     public void borrowItem(String borrowDateStr) throws LibraryException {
-        if (!isAvailable) {
-            throw new LibraryException("Item is not available for borrowing");
+        if (!checkAvailability()) {
+            throw new LibraryException("Item is not available for borrowing", false);
         }
+        borrowItem(parseEpochDay(borrowDateStr));
+    }
 
-        try {
-            LocalDate borrowDate = LocalDate.parse(borrowDateStr);
-            this.dueDate = borrowDate.plusDays(14); // 2 weeks borrowing period
-            this.isAvailable = false;
-        } catch (DateTimeParseException e) {
-            throw new LibraryException("Invalid date format. Please use YYYY-MM-DD");
+    public void borrowItem(LocalDate borrowDate) throws LibraryException {
+        borrowItem(toEpochDay(borrowDate));
+    }
+
+    public void borrowItem(int borrowEpochDay) throws LibraryException {
+        LibraNet catalog = owner;
+        if (catalog != null) {
+            catalog.borrowItem(this, borrowEpochDay);
+        } else if (!tryBorrow(borrowEpochDay)) {
+            throw new LibraryException("Item is not available for borrowing", false);
         }
     }
 
+    // Returns false instead of throwing when the item is already borrowed
+    boolean tryBorrow(int borrowEpochDay) {
+        long borrowed = packState(false, borrowEpochDay + LOAN_PERIOD_DAYS);
+        long current;
+        do {
+            current = state;
+            if ((current & AVAILABLE) == 0) {
+                return false;
+            }
+        } while (!STATE.compareAndSet(this, current, borrowed));
+        return true;
+    }
+
     public double returnItem(String returnDateStr) throws LibraryException {
-        if (isAvailable) {
-            throw new LibraryException("Item was not borrowed");
+        if (checkAvailability()) {
+            throw new LibraryException("Item was not borrowed", false);
         }
+        return returnItem(parseEpochDay(returnDateStr));
+    }
 
-        try {
-            LocalDate returnDate = LocalDate.parse(returnDateStr);
-            this.isAvailable = true;
+    public double returnItem(LocalDate returnDate) throws LibraryException {
+        return returnItem(toEpochDay(returnDate));
+    }
+
+    public double returnItem(int returnEpochDay) throws LibraryException {
+        LibraNet catalog = owner;
+        double fine = catalog != null ? catalog.returnItem(this, returnEpochDay) : tryReturn(returnEpochDay);
+        if (fine == NOT_BORROWED) {
+            throw new LibraryException("Item was not borrowed", false);
+        }
+        return fine;
+    }
+
+    // Returns the fine, or NOT_BORROWED instead of throwing when the item is not
+    // out. The fine uses the due date from the state word this call swapped out.
+    double tryReturn(int returnEpochDay) {
+        long current;
+        do {
+            current = state;
+            if ((current & AVAILABLE) != 0) {
+                return NOT_BORROWED;
+            }
+        } while (!STATE.compareAndSet(this, current, current | AVAILABLE));
+
+        long daysOverdue = (long) returnEpochDay - (int) current;
+        return daysOverdue > 0 ? daysOverdue * DEFAULT_FINE_RATE : 0.0;
+    }
+
+    void setOwner(LibraNet catalog) {
+        owner = catalog;
+    }
+
+    // Overwrites availability and due date when rebuilding an item from storage
+    void restoreState(boolean available, int dueEpochDay) {
+        state = packState(available, dueEpochDay);
+    }
+
+    private static long packState(boolean available, int dueEpochDay) {
+        return (available ? AVAILABLE : 0L) | (dueEpochDay & 0xFFFFFFFFL);
+    }
+
+    static int parseEpochDay(String dateStr) throws LibraryException {
+        long epochDay = tryParseEpochDay(dateStr);
+        if (epochDay == INVALID_EPOCH_DAY) {
+            throw new LibraryException("Invalid date format. Please use YYYY-MM-DD", false);
+        }
+        return (int) epochDay;
+    }
 
-            if (returnDate.isAfter(dueDate)) {
-                long daysOverdue = ChronoUnit.DAYS.between(dueDate, returnDate);
-                return daysOverdue * DEFAULT_FINE_RATE;
+    // Parses YYYY-MM-DD without throwing, falling back to LocalDate.parse for the
+    // other forms it accepts (signed or longer years). Returns INVALID_EPOCH_DAY for
+    // text that is not a valid date or that toEpochDay would reject.
+    static long tryParseEpochDay(String dateStr) {
+        if (dateStr.length() == 10 && dateStr.charAt(4) == '-' && dateStr.charAt(7) == '-') {
+            int year = parseDigits(dateStr, 0, 4);
+            int month = parseDigits(dateStr, 5, 7);
+            int day = parseDigits(dateStr, 8, 10);
+            if (year < 0 || month < 1 || month > 12 || day < 1 || day > Month.of(month).length(Year.isLeap(year))) {
+                return INVALID_EPOCH_DAY;
             }
-            return 0.0;
+            return LocalDate.of(year, month, day).toEpochDay();
+        }
+        try {
+            long epochDay = LocalDate.parse(dateStr).toEpochDay();
+            return isValidEpochDay(epochDay) ? epochDay : INVALID_EPOCH_DAY;
         } catch (DateTimeParseException e) {
-            throw new LibraryException("Invalid date format. Please use YYYY-MM-DD");
+            return INVALID_EPOCH_DAY;
+        }
+    }
+
+    // Value of the decimal digits in text[start, end), or -1 if any is not a digit
+    private static int parseDigits(String text, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    static int toEpochDay(LocalDate date) throws LibraryException {
+        long epochDay = date.toEpochDay();
+        if (!isValidEpochDay(epochDay)) {
+            throw new LibraryException("Date " + date + " is out of range", false);
         }
+        return (int) epochDay;
+    }
+
+    // Whether a borrow on this day has a representable due date
+    static boolean isValidEpochDay(long epochDay) {
+        return epochDay > NO_DUE_DATE + LOAN_PERIOD_DAYS && epochDay <= Integer.MAX_VALUE - LOAN_PERIOD_DAYS;
     }
 
     public boolean checkAvailability() {
-        return isAvailable;
+        return (state & AVAILABLE) != 0;
     }
 
     // Getters
@@ -87,13 +284,115 @@ abstract class LibraryItem {
     }
 
     public LocalDate getDueDate() {
-        return dueDate;
+        int dueEpochDay = getDueEpochDay();
+        return dueEpochDay == NO_DUE_DATE ? null : LocalDate.ofEpochDay(dueEpochDay);
+    }
+
+    public int getDueEpochDay() {
+        return (int) state;
     }
 
     @Override
     public String toString() {
-        return String.format("ID: %d, Title: %s, Author: %s, Available: %s",
-                id, title, author, isAvailable ? "Yes" : "No");
+        return appendTo(new StringBuilder(128)).toString();
+    }
+
+    // Appends the text of toString to out without building intermediate strings;
+    // subclasses add their fields after calling this
+    public StringBuilder appendTo(StringBuilder out) {
+        out.append("ID: ");
+        appendNumber(out, id);
+        return out.append(", Title: ").append(title)
+                .append(", Author: ").append(author)
+                .append(", Available: ").append(checkAvailability() ? "Yes" : "No");
+    }
+
+    public void appendTo(Appendable out) throws IOException {
+        if (out instanceof StringBuilder) {
+            appendTo((StringBuilder) out);
+        } else {
+            out.append(appendTo(new StringBuilder(128)));
+        }
+    }
+
+    // Appends value as %d does in the default format locale, whose digits may not be ASCII
+    static void appendNumber(StringBuilder out, long value) {
+        int start = out.length();
+        out.append(value);
+        localizeDigits(out, start, NumberSymbols.current().zeroDigit);
+    }
+
+    // Appends value as %.2f does in the default format locale: the shortest decimal
+    // form of value rounded half up to two places. Exact ties such as 1.005 are
+    // recognised and rounded up; the rare values too large or too close to a tie
+    // to decide in double arithmetic fall back to String.format.
+    static void appendHundredths(StringBuilder out, double value) {
+        NumberSymbols symbols = NumberSymbols.current();
+        double magnitude = Math.abs(value);
+        if (!(magnitude < 1e6)) {
+            out.append(String.format(symbols.locale, "%.2f", value));
+            return;
+        }
+        double scaled = magnitude * 100;
+        long hundredths = (long) Math.floor(scaled);
+        double fraction = scaled - hundredths;
+        if (Math.abs(fraction - 0.5) < 1e-6) {
+            long thousandths = Math.round(magnitude * 1000);
+            if (thousandths % 10 != 5 || thousandths / 1000.0 != magnitude) {
+                out.append(String.format(symbols.locale, "%.2f", value));
+                return;
+            }
+            hundredths = thousandths / 10 + 1;
+        } else if (fraction > 0.5) {
+            hundredths++;
+        }
+        // %.2f keeps the sign of negative zero and of values that round to zero
+        if (Double.compare(value, 0.0) < 0) {
+            out.append('-');
+        }
+        int start = out.length();
+        out.append(hundredths / 100).append(symbols.decimalSeparator);
+        int cents = (int) (hundredths % 100);
+        out.append((char) ('0' + cents / 10)).append((char) ('0' + cents % 10));
+        localizeDigits(out, start, symbols.zeroDigit);
+    }
+
+    private static void localizeDigits(StringBuilder out, int start, char zeroDigit) {
+        if (zeroDigit != '0') {
+            for (int i = start; i < out.length(); i++) {
+                char c = out.charAt(i);
+                if (c >= '0' && c <= '9') {
+                    out.setCharAt(i, (char) (zeroDigit + (c - '0')));
+                }
+            }
+        }
+    }
+
+    // Digits and decimal separator of the default format locale, looked up again
+    // only when the default changes
+    private static final class NumberSymbols {
+        private static volatile NumberSymbols cached = new NumberSymbols(Locale.getDefault(Locale.Category.FORMAT));
+
+        final Locale locale;
+        final char zeroDigit;
+        final char decimalSeparator;
+
+        private NumberSymbols(Locale locale) {
+            DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
+            this.locale = locale;
+            this.zeroDigit = symbols.getZeroDigit();
+            this.decimalSeparator = symbols.getDecimalSeparator();
+        }
+
+        static NumberSymbols current() {
+            NumberSymbols symbols = cached;
+            Locale locale = Locale.getDefault(Locale.Category.FORMAT);
+            if (symbols.locale != locale) {
+                symbols = new NumberSymbols(locale);
+                cached = symbols;
+            }
+            return symbols;
+        }
     }
 }
 
@@ -111,8 +410,10 @@ class Book extends LibraryItem {
     }
 
     @Override
-    public String toString() {
-        return super.toString() + String.format(", Type: Book, Pages: %d", pageCount);
+    public StringBuilder appendTo(StringBuilder out) {
+        super.appendTo(out).append(", Type: Book, Pages: ");
+        appendNumber(out, pageCount);
+        return out;
     }
 }
 
@@ -136,8 +437,10 @@ class Audiobook extends LibraryItem implements Playable {
     }
 
     @Override
-    public String toString() {
-        return super.toString() + String.format(", Type: Audiobook, Duration: %.2f hours", duration);
+    public StringBuilder appendTo(StringBuilder out) {
+        super.appendTo(out).append(", Type: Audiobook, Duration: ");
+        appendHundredths(out, duration);
+        return out.append(" hours");
     }
 }
 
@@ -152,122 +455,5559 @@ class EMagazine extends LibraryItem {
         this.isArchived = false;
     }
 
-    public void archiveIssue() {
-        this.isArchived = true;
-        System.out.println("Issue #" + issueNumber + " of " + getTitle() + " has been archived.");
+    public void archiveIssue() {
+        this.isArchived = true;
+        System.out.println("Issue #" + issueNumber + " of " + getTitle() + " has been archived.");
+    }
+
+    // Sets the flag without the console message, when rebuilding from storage
+    void restoreArchived(boolean archived) {
+        this.isArchived = archived;
+    }
+
+    public boolean isArchived() {
+        return isArchived;
+    }
+
+    public int getIssueNumber() {
+        return issueNumber;
+    }
+
+    @Override
+    public StringBuilder appendTo(StringBuilder out) {
+        super.appendTo(out).append(", Type: E-Magazine, Issue: ");
+        appendNumber(out, issueNumber);
+        return out.append(", Archived: ").append(isArchived ? "Yes" : "No");
+    }
+}
+
+// Growable int array used for index posting lists
+class IntList {
+    private int[] values;
+    private int size;
+    // Length of the ascending, duplicate-free prefix built by append
+    private int sortedSize;
+
+    public IntList() {
+        values = new int[4];
+    }
+
+    public void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    public void addAll(IntList other) {
+        if (size + other.size > values.length) {
+            values = Arrays.copyOf(values, Math.max(size * 2, size + other.size));
+        }
+        System.arraycopy(other.values, 0, values, size, other.size);
+        size += other.size;
+    }
+
+    // Removes value from a list kept in ascending order without duplicates
+    public void removeSorted(int value) {
+        int index = Arrays.binarySearch(values, 0, size, value);
+        if (index >= 0) {
+            System.arraycopy(values, index + 1, values, index, size - index - 1);
+            size--;
+            sortedSize = size;
+        }
+    }
+
+    public int get(int index) {
+        return values[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Appends value to a list kept in ascending order without duplicates once
+    // sortPending runs. Returns true when this append is the first one out of order.
+    public boolean append(int value) {
+        boolean sorted = sortedSize == size;
+        add(value);
+        if (sorted && (size == 1 || value > values[size - 2])) {
+            sortedSize = size;
+            return false;
+        }
+        return sorted;
+    }
+
+    // Merges the values appended out of order into the sorted prefix, dropping
+    // duplicates, in O(size + k log k) for k pending values
+    public void sortPending() {
+        if (sortedSize == size) {
+            return;
+        }
+        int[] pending = Arrays.copyOfRange(values, sortedSize, size);
+        Arrays.sort(pending);
+        int kept = 0;
+        for (int value : pending) {
+            if ((kept == 0 || pending[kept - 1] != value) && Arrays.binarySearch(values, 0, sortedSize, value) < 0) {
+                pending[kept++] = value;
+            }
+        }
+        int write = sortedSize + kept - 1;
+        int i = sortedSize - 1;
+        for (int j = kept - 1; j >= 0; ) {
+            values[write--] = i >= 0 && values[i] > pending[j] ? values[i--] : pending[j--];
+        }
+        size = sortedSize = sortedSize + kept;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    public int[] toSortedUniqueArray() {
+        int[] sorted = Arrays.copyOf(values, size);
+        Arrays.sort(sorted);
+        int unique = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (unique == 0 || sorted[unique - 1] != sorted[i]) {
+                sorted[unique++] = sorted[i];
+            }
+        }
+        return unique == sorted.length ? sorted : Arrays.copyOf(sorted, unique);
+    }
+}
+
+// Inverted index over lowercased title tokens. Every suffix of a token is a key,
+// so both token-prefix and infix lookups become a range scan over sorted keys.
+// Posting lists are kept sorted so removing an item binary-searches each list;
+// adds append, and sortPending merges them into order before the next lookup.
+class TitleIndex {
+    private final TreeMap<String, IntList> suffixes = new TreeMap<>();
+    // Posting lists appended out of order since the last sortPending
+    private final List<IntList> unsorted = new ArrayList<>();
+
+    public void clear() {
+        suffixes.clear();
+        unsorted.clear();
+    }
+
+    public void add(LibraryItem item) {
+        add(item.getId(), item.getTitle());
+    }
+
+    public void add(int id, String title) {
+        for (String suffix : suffixesOf(title)) {
+            append(suffix, id);
+        }
+    }
+
+    public void sortPending() {
+        for (IntList postings : unsorted) {
+            postings.sortPending();
+        }
+        unsorted.clear();
+    }
+
+    public void remove(LibraryItem item) {
+        sortPending();
+        for (String suffix : suffixesOf(item.getTitle())) {
+            remove(item.getId(), suffix);
+        }
+    }
+
+    // Re-indexes the item that replaces previous under the same ID, touching only
+    // the posting lists of suffixes the two titles do not share
+    public void replace(LibraryItem previous, LibraryItem item) {
+        sortPending();
+        Set<String> before = suffixesOf(previous.getTitle());
+        Set<String> after = suffixesOf(item.getTitle());
+        for (String suffix : before) {
+            if (!after.contains(suffix)) {
+                remove(item.getId(), suffix);
+            }
+        }
+        for (String suffix : after) {
+            if (!before.contains(suffix)) {
+                append(suffix, item.getId());
+            }
+        }
+    }
+
+    private void append(String suffix, int id) {
+        IntList postings = suffixes.computeIfAbsent(suffix, k -> new IntList());
+        if (postings.append(id)) {
+            unsorted.add(postings);
+        }
+    }
+
+    private void remove(int id, String suffix) {
+        IntList postings = suffixes.get(suffix);
+        if (postings != null) {
+            postings.removeSorted(id);
+            if (postings.isEmpty()) {
+                suffixes.remove(suffix);
+            }
+        }
+    }
+
+    private static Set<String> suffixesOf(String title) {
+        Set<String> keys = new HashSet<>();
+        for (String token : tokenize(title.toLowerCase())) {
+            for (int i = 0; i < token.length(); i++) {
+                keys.add(token.substring(i));
+            }
+        }
+        return keys;
+    }
+
+    // Returns the sorted ids of items whose title may contain the lowercased query.
+    // Any title containing the query also contains the query's longest token inside
+    // one of its own tokens, so the result is a superset that callers must verify.
+    // Returns null when the query has no token and every item is a candidate.
+    public int[] candidates(String lowerQuery) {
+        String key = longestToken(lowerQuery);
+        if (key == null) {
+            return null;
+        }
+
+        IntList merged = new IntList();
+        for (Map.Entry<String, IntList> entry : suffixes.tailMap(key, true).entrySet()) {
+            if (!entry.getKey().startsWith(key)) {
+                break;
+            }
+            merged.addAll(entry.getValue());
+        }
+        return merged.toSortedUniqueArray();
+    }
+
+    // Upper bound on the number of candidates: the summed lengths of the posting
+    // lists candidates would merge, or -1 when every item is a candidate
+    public long estimate(String lowerQuery) {
+        String key = longestToken(lowerQuery);
+        if (key == null) {
+            return -1;
+        }
+        long total = 0;
+        for (Map.Entry<String, IntList> entry : suffixes.tailMap(key, true).entrySet()) {
+            if (!entry.getKey().startsWith(key)) {
+                break;
+            }
+            total += entry.getValue().size();
+        }
+        return total;
+    }
+
+    private static String longestToken(String text) {
+        String longest = null;
+        for (String token : tokenize(text)) {
+            if (longest == null || token.length() > longest.length()) {
+                longest = token;
+            }
+        }
+        return longest;
+    }
+
+    // Splits text into maximal runs of letters and digits
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                tokens.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+}
+
+// Character n-gram index over lowercased author names. Queries of three or more
+// characters intersect trigram posting lists; shorter queries are answered
+// exactly by the unigram and bigram lists. Posting lists are sorted: adds append
+// and writers call sortPending before releasing the catalog lock, so lookups
+// never modify the index and a bulk rebuild sorts each list once.
+class AuthorIndex {
+    private final LongObjectMap<IntList> grams = new LongObjectMap<>();
+    // Posting lists appended out of order since the last sortPending
+    private final List<IntList> unsorted = new ArrayList<>();
+
+    public void clear() {
+        grams.clear();
+        unsorted.clear();
+    }
+
+    public void add(LibraryItem item) {
+        add(item.getId(), item.getAuthor());
+    }
+
+    public void add(int id, String authorName) {
+        for (long key : gramsOf(authorName)) {
+            append(key, id);
+        }
+    }
+
+    public void sortPending() {
+        for (IntList postings : unsorted) {
+            postings.sortPending();
+        }
+        unsorted.clear();
+    }
+
+    public void remove(LibraryItem item) {
+        sortPending();
+        for (long key : gramsOf(item.getAuthor())) {
+            remove(item.getId(), key);
+        }
+    }
+
+    // Re-indexes the item that replaces previous under the same ID, touching only
+    // the posting lists of grams the two author names do not share
+    public void replace(LibraryItem previous, LibraryItem item) {
+        sortPending();
+        long[] before = gramsOf(previous.getAuthor());
+        long[] after = gramsOf(item.getAuthor());
+        for (long key : before) {
+            if (Arrays.binarySearch(after, key) < 0) {
+                remove(item.getId(), key);
+            }
+        }
+        for (long key : after) {
+            if (Arrays.binarySearch(before, key) < 0) {
+                append(key, item.getId());
+            }
+        }
+    }
+
+    private void append(long key, int id) {
+        IntList postings = grams.get(key);
+        if (postings == null) {
+            postings = new IntList();
+            grams.put(key, postings);
+        }
+        if (postings.append(id)) {
+            unsorted.add(postings);
+        }
+    }
+
+    private void remove(int id, long key) {
+        IntList postings = grams.get(key);
+        if (postings != null) {
+            postings.removeSorted(id);
+            if (postings.isEmpty()) {
+                grams.remove(key);
+            }
+        }
+    }
+
+    // The distinct gram keys of an author name, sorted
+    private static long[] gramsOf(String authorName) {
+        String author = authorName.toLowerCase();
+        int length = author.length();
+        long[] keys = new long[3 * length];
+        int count = 0;
+        for (int n = 1; n <= 3; n++) {
+            for (int i = 0; i + n <= length; i++) {
+                keys[count++] = gramKey(author, i, n);
+            }
+        }
+        Arrays.sort(keys, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || keys[unique - 1] != keys[i]) {
+                keys[unique++] = keys[i];
+            }
+        }
+        return Arrays.copyOf(keys, unique);
+    }
+
+    // Returns the sorted ids of items whose author may contain the lowercased query,
+    // or null for an empty query. Results for queries under three characters are exact.
+    public int[] candidates(String lowerQuery) {
+        int n = lowerQuery.length();
+        if (n == 0) {
+            return null;
+        }
+        if (n < 3) {
+            IntList postings = grams.get(gramKey(lowerQuery, 0, n));
+            if (postings == null) {
+                return new int[0];
+            }
+            return postings.toArray();
+        }
+
+        List<IntList> lists = new ArrayList<>();
+        for (int i = 0; i + 3 <= n; i++) {
+            IntList postings = grams.get(gramKey(lowerQuery, i, 3));
+            if (postings == null) {
+                return new int[0];
+            }
+            lists.add(postings);
+        }
+        lists.sort(Comparator.comparingInt(IntList::size));
+
+        int[] result = lists.get(0).toArray();
+        int size = result.length;
+        for (int l = 1; l < lists.size() && size > 0; l++) {
+            IntList other = lists.get(l);
+            int kept = 0;
+            int j = 0;
+            for (int i = 0; i < size; i++) {
+                while (j < other.size() && other.get(j) < result[i]) {
+                    j++;
+                }
+                if (j == other.size()) {
+                    break;
+                }
+                if (other.get(j) == result[i]) {
+                    result[kept++] = result[i];
+                }
+            }
+            size = kept;
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    // Upper bound on the number of candidates, exact under three characters: the
+    // length of the shortest posting list candidates would read, or -1 for an
+    // empty query
+    public int estimate(String lowerQuery) {
+        int n = lowerQuery.length();
+        if (n == 0) {
+            return -1;
+        }
+        int gram = Math.min(n, 3);
+        int shortest = Integer.MAX_VALUE;
+        for (int i = 0; i + gram <= n; i++) {
+            IntList postings = grams.get(gramKey(lowerQuery, i, gram));
+            shortest = Math.min(shortest, postings == null ? 0 : postings.size());
+        }
+        return shortest;
+    }
+
+    private static long gramKey(String text, int start, int n) {
+        long key = n;
+        for (int i = 0; i < n; i++) {
+            key = (key << 16) | text.charAt(start + i);
+        }
+        return key;
+    }
+}
+
+// Open-addressing map from item ID to a dense slot, with items stored by slot.
+// Each bucket packs the key and slot + 1 into one long (0 marks an empty bucket),
+// so entries cost no objects. Writes must be serialized by the caller, but reads
+// need no lock: a bucket is published with a release store after its item, and
+// resized arrays are swapped in through volatile fields.
+// Slots can also be reserved without an item, for catalogs loaded from a
+// snapshot; the loader then builds each item on its first access.
+class ItemTable {
+    private static final VarHandle BUCKETS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle ITEMS = MethodHandles.arrayElementVarHandle(LibraryItem[].class);
+
+    private volatile long[] buckets;
+    private volatile LibraryItem[] slotItems;
+    private volatile int size;
+    private IntFunction<LibraryItem> loader;
+
+    public ItemTable() {
+        buckets = new long[16];
+        slotItems = new LibraryItem[8];
+    }
+
+    // Returns the slot of id, or -1 if it is absent
+    public int slotOf(int id) {
+        long[] table = buckets;
+        int mask = table.length - 1;
+        for (int b = mix(id) & mask; ; b = (b + 1) & mask) {
+            long bucket = (long) BUCKETS.getAcquire(table, b);
+            if (bucket == 0 || (int) (bucket >>> 32) == id) {
+                return (int) bucket - 1;
+            }
+        }
+    }
+
+    public LibraryItem get(int id) {
+        int slot = slotOf(id);
+        return slot < 0 ? null : itemAt(slot);
+    }
+
+    public LibraryItem itemAt(int slot) {
+        LibraryItem item = (LibraryItem) ITEMS.getAcquire(slotItems, slot);
+        return item != null ? item : load(slot);
+    }
+
+    // Returns the item in slot, or null if it has not been loaded yet
+    public LibraryItem peek(int slot) {
+        return (LibraryItem) ITEMS.getAcquire(slotItems, slot);
+    }
+
+    // Loads under the table's monitor, which growth also holds, so each slot gets
+    // exactly one item instance even when readers race
+    private synchronized LibraryItem load(int slot) {
+        LibraryItem item = (LibraryItem) ITEMS.getAcquire(slotItems, slot);
+        if (item == null) {
+            item = loader.apply(slot);
+            ITEMS.setRelease(slotItems, slot, item);
+        }
+        return item;
+    }
+
+    // Stores item under its ID and returns its slot; an existing ID keeps its slot
+    public int put(LibraryItem item) {
+        int id = item.getId();
+        long[] table = buckets;
+        int mask = table.length - 1;
+        int b = mix(id) & mask;
+        while (table[b] != 0) {
+            if ((int) (table[b] >>> 32) == id) {
+                int slot = (int) table[b] - 1;
+                ITEMS.setRelease(slotItems, slot, item);
+                return slot;
+            }
+            b = (b + 1) & mask;
+        }
+        return insert(b, id, item);
+    }
+
+    private int insert(int bucket, int id, LibraryItem item) {
+        long[] table = buckets;
+        int slot = size;
+        if (slot == slotItems.length) {
+            synchronized (this) {
+                slotItems = Arrays.copyOf(slotItems, slot * 2);
+            }
+        }
+        ITEMS.setRelease(slotItems, slot, item);
+        BUCKETS.setRelease(table, bucket, pack(id, slot));
+        size = slot + 1;
+        if (size > table.length - (table.length >>> 2)) {
+            rehash(table.length * 2);
+        }
+        return slot;
+    }
+
+    // Fills an empty table with one not-yet-loaded slot per ID, slot i holding
+    // ids[i]. Keys are placed in home-bucket order (a counting sort on the high
+    // bucket bits), so the writes sweep the table instead of missing the cache on
+    // every insert, and the filled table is published in one step.
+    public void loadUnloaded(int[] ids, IntFunction<LibraryItem> loader) {
+        if (size != 0) {
+            throw new IllegalStateException("Only an empty table can be bulk loaded");
+        }
+        int capacity = 16;
+        while (ids.length > capacity - (capacity >>> 2)) {
+            capacity *= 2;
+        }
+        int mask = capacity - 1;
+        int shift = Math.max(0, Integer.numberOfTrailingZeros(capacity) - 12);
+        int[] partitionStarts = new int[(mask >>> shift) + 2];
+        for (int id : ids) {
+            partitionStarts[((mix(id) & mask) >>> shift) + 1]++;
+        }
+        for (int p = 1; p < partitionStarts.length; p++) {
+            partitionStarts[p] += partitionStarts[p - 1];
+        }
+        int[] order = new int[ids.length];
+        for (int slot = 0; slot < ids.length; slot++) {
+            order[partitionStarts[(mix(ids[slot]) & mask) >>> shift]++] = slot;
+        }
+
+        long[] table = new long[capacity];
+        for (int slot : order) {
+            int id = ids[slot];
+            int b = mix(id) & mask;
+            while (table[b] != 0) {
+                if ((int) (table[b] >>> 32) == id) {
+                    throw new IllegalArgumentException("Duplicate item ID " + id);
+                }
+                b = (b + 1) & mask;
+            }
+            table[b] = pack(id, slot);
+        }
+
+        this.loader = loader;
+        synchronized (this) {
+            slotItems = new LibraryItem[Math.max(8, ids.length)];
+        }
+        buckets = table;
+        size = ids.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldTable = buckets;
+        long[] table = new long[capacity];
+        int mask = capacity - 1;
+        for (long bucket : oldTable) {
+            if (bucket != 0) {
+                int b = mix((int) (bucket >>> 32)) & mask;
+                while (table[b] != 0) {
+                    b = (b + 1) & mask;
+                }
+                table[b] = bucket;
+            }
+        }
+        buckets = table;
+    }
+
+    private static long pack(int id, int slot) {
+        return ((long) id << 32) | (slot + 1L);
+    }
+
+    static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+
+// Bitset over item slots whose words are updated atomically, so borrows and
+// returns of different items can flip neighbouring bits without a shared lock.
+// Growing replaces the word array and must not race with set or clear.
+class SlotBits {
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private long[] words = new long[1];
+
+    public void ensureCapacity(int bits) {
+        int needed = (bits + 63) >>> 6;
+        if (needed > words.length) {
+            words = Arrays.copyOf(words, Math.max(words.length * 2, needed));
+        }
+    }
+
+    public int capacity() {
+        return words.length << 6;
+    }
+
+    // Replaces the low words wholesale; only for loading, before any slot is in use
+    public void setWords(long[] loaded) {
+        ensureCapacity(loaded.length << 6);
+        System.arraycopy(loaded, 0, words, 0, loaded.length);
+    }
+
+    public void set(int bit, boolean value) {
+        if (value) {
+            set(bit);
+        } else {
+            clear(bit);
+        }
+    }
+
+    public void set(int bit) {
+        WORDS.getAndBitwiseOr(words, bit >>> 6, 1L << bit);
+    }
+
+    public void clear(int bit) {
+        WORDS.getAndBitwiseAnd(words, bit >>> 6, ~(1L << bit));
+    }
+
+    public boolean get(int bit) {
+        return (word(bit >>> 6) & (1L << bit)) != 0;
+    }
+
+    // Returns the first set bit at or after from, or -1
+    public int nextSetBit(int from) {
+        int w = from >>> 6;
+        if (w >= words.length) {
+            return -1;
+        }
+        long bits = word(w) & (-1L << from);
+        while (bits == 0) {
+            if (++w == words.length) {
+                return -1;
+            }
+            bits = word(w);
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    // Returns the first clear bit at or after from; bits past the capacity are clear
+    public int nextClearBit(int from) {
+        int w = from >>> 6;
+        if (w >= words.length) {
+            return from;
+        }
+        long bits = ~word(w) & (-1L << from);
+        while (bits == 0) {
+            if (++w == words.length) {
+                return w << 6;
+            }
+            bits = ~word(w);
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    public int cardinality() {
+        int count = 0;
+        for (int w = 0; w < words.length; w++) {
+            count += Long.bitCount(word(w));
+        }
+        return count;
+    }
+
+    // Copies the bits below bits into a BitSet
+    public BitSet toBitSet(int bits) {
+        long[] copy = new long[Math.min((bits + 63) >>> 6, words.length)];
+        for (int w = 0; w < copy.length; w++) {
+            copy[w] = word(w);
+        }
+        BitSet result = BitSet.valueOf(copy);
+        result.clear(bits, Math.max(bits, copy.length << 6));
+        return result;
+    }
+
+    private long word(int w) {
+        return (long) WORDS.getVolatile(words, w);
+    }
+}
+
+// Lock used in single-threaded mode, where LibraNet skips all locking
+class NoLock implements Lock {
+    static final NoLock INSTANCE = new NoLock();
+
+    @Override
+    public void lock() {
+    }
+
+    @Override
+    public void lockInterruptibly() {
+    }
+
+    @Override
+    public boolean tryLock() {
+        return true;
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) {
+        return true;
+    }
+
+    @Override
+    public void unlock() {
+    }
+
+    @Override
+    public Condition newCondition() {
+        throw new UnsupportedOperationException("NoLock has no conditions");
+    }
+}
+
+// Open-addressing int to long map used by the fines ledger. Key 0 marks an
+// empty bucket, so a real 0 key is kept in dedicated fields.
+class IntLongMap {
+    private int[] keys;
+    private long[] values;
+    private int size;
+    private boolean hasZeroKey;
+    private long zeroValue;
+
+    public IntLongMap() {
+        keys = new int[16];
+        values = new long[16];
+    }
+
+    public long get(int key, long defaultValue) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : defaultValue;
+        }
+        int mask = keys.length - 1;
+        for (int b = ItemTable.mix(key) & mask; keys[b] != 0; b = (b + 1) & mask) {
+            if (keys[b] == key) {
+                return values[b];
+            }
+        }
+        return defaultValue;
+    }
+
+    // Adds delta to the value of key, starting from 0, in a single probe
+    public void add(int key, long delta) {
+        int b = bucketFor(key);
+        if (b < 0) {
+            zeroValue = hasZeroKey ? zeroValue + delta : delta;
+            hasZeroKey = true;
+        } else if (keys[b] == key) {
+            values[b] += delta;
+        } else {
+            insert(b, key, delta);
+        }
+    }
+
+    // Stores value for key and returns the previous value, or defaultValue
+    public long put(int key, long value, long defaultValue) {
+        int b = bucketFor(key);
+        long previous;
+        if (b < 0) {
+            previous = hasZeroKey ? zeroValue : defaultValue;
+            zeroValue = value;
+            hasZeroKey = true;
+        } else if (keys[b] == key) {
+            previous = values[b];
+            values[b] = value;
+        } else {
+            previous = defaultValue;
+            insert(b, key, value);
+        }
+        return previous;
+    }
+
+    // The bucket holding key, or the empty bucket where it belongs; -1 for key 0
+    private int bucketFor(int key) {
+        if (key == 0) {
+            return -1;
+        }
+        int mask = keys.length - 1;
+        int b = ItemTable.mix(key) & mask;
+        while (keys[b] != 0 && keys[b] != key) {
+            b = (b + 1) & mask;
+        }
+        return b;
+    }
+
+    private void insert(int b, int key, long value) {
+        keys[b] = key;
+        values[b] = value;
+        if (++size > keys.length - (keys.length >>> 2)) {
+            rehash(keys.length * 2);
+        }
+    }
+
+    public int size() {
+        return size + (hasZeroKey ? 1 : 0);
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new int[capacity];
+        values = new long[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int b = ItemTable.mix(oldKeys[i]) & mask;
+                while (keys[b] != 0) {
+                    b = (b + 1) & mask;
+                }
+                keys[b] = oldKeys[i];
+                values[b] = oldValues[i];
+            }
+        }
+    }
+}
+
+// Open-addressing long to object map used for the author index grams. Key 0 marks
+// an empty bucket and is not a valid key. Removal moves later entries of the
+// probe run back into the gap, so lookups need no tombstones.
+class LongObjectMap<V> {
+    private long[] keys;
+    private Object[] values;
+    private int size;
+
+    public LongObjectMap() {
+        clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int mask = keys.length - 1;
+        for (int b = mix(key) & mask; keys[b] != 0; b = (b + 1) & mask) {
+            if (keys[b] == key) {
+                return (V) values[b];
+            }
+        }
+        return null;
+    }
+
+    public void put(long key, V value) {
+        int mask = keys.length - 1;
+        int b = mix(key) & mask;
+        while (keys[b] != 0 && keys[b] != key) {
+            b = (b + 1) & mask;
+        }
+        values[b] = value;
+        if (keys[b] == 0) {
+            keys[b] = key;
+            if (++size > keys.length - (keys.length >>> 2)) {
+                rehash(keys.length * 2);
+            }
+        }
+    }
+
+    public void remove(long key) {
+        int mask = keys.length - 1;
+        int gap = mix(key) & mask;
+        while (keys[gap] != key) {
+            if (keys[gap] == 0) {
+                return;
+            }
+            gap = (gap + 1) & mask;
+        }
+        for (int b = (gap + 1) & mask; keys[b] != 0; b = (b + 1) & mask) {
+            // An entry can fill the gap unless its home bucket lies after the gap
+            if (((b - (mix(keys[b]) & mask)) & mask) >= ((b - gap) & mask)) {
+                keys[gap] = keys[b];
+                values[gap] = values[b];
+                gap = b;
+            }
+        }
+        keys[gap] = 0;
+        values[gap] = null;
+        size--;
+    }
+
+    public void clear() {
+        keys = new long[16];
+        values = new Object[16];
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static int mix(long key) {
+        return ItemTable.mix((int) (key ^ (key >>> 32)));
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int b = mix(oldKeys[i]) & mask;
+                while (keys[b] != 0) {
+                    b = (b + 1) & mask;
+                }
+                keys[b] = oldKeys[i];
+                values[b] = oldValues[i];
+            }
+        }
+    }
+}
+
+// Ledger of every fine charged, in fixed-point minor units (paise) so sums are
+// exact. The running total is updated with each fine, so reading it is O(1); in
+// concurrent mode it is a LongAdder, so returns on different items do not contend
+// on one counter. Per-item totals and histories are split over lock stripes by
+// item ID: each stripe appends its fines to parallel event arrays and chains an
+// item's events together, newest first, through the previous-event array.
+class FinesLedger {
+    static final long MINOR_UNITS_PER_RUPEE = 100;
+    private static final int STRIPES = 64;
+
+    interface EventConsumer {
+        void accept(int itemId, int epochDay, long minorUnits);
+    }
+
+    static final class FineEvent {
+        private final int itemId;
+        private final int epochDay;
+        private final long minorUnits;
+
+        FineEvent(int itemId, int epochDay, long minorUnits) {
+            this.itemId = itemId;
+            this.epochDay = epochDay;
+            this.minorUnits = minorUnits;
+        }
+
+        public int getItemId() {
+            return itemId;
+        }
+
+        public LocalDate getDate() {
+            return LocalDate.ofEpochDay(epochDay);
+        }
+
+        public long getMinorUnits() {
+            return minorUnits;
+        }
+
+        public double getAmount() {
+            return toRupees(minorUnits);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %.2f rs", getDate(), getAmount());
+        }
+    }
+
+    private static final class Stripe {
+        final Lock lock;
+        final IntLongMap itemTotals = new IntLongMap();
+        // Index of each item's newest event
+        final IntLongMap newestEvent = new IntLongMap();
+        int[] itemIds = new int[16];
+        int[] epochDays = new int[16];
+        long[] amounts = new long[16];
+        int[] previousEvent = new int[16];
+        int events;
+
+        Stripe(Lock lock) {
+            this.lock = lock;
+        }
+
+        void append(int itemId, int epochDay, long minorUnits) {
+            if (events == itemIds.length) {
+                int capacity = events * 2;
+                itemIds = Arrays.copyOf(itemIds, capacity);
+                epochDays = Arrays.copyOf(epochDays, capacity);
+                amounts = Arrays.copyOf(amounts, capacity);
+                previousEvent = Arrays.copyOf(previousEvent, capacity);
+            }
+            itemIds[events] = itemId;
+            epochDays[events] = epochDay;
+            amounts[events] = minorUnits;
+            previousEvent[events] = (int) newestEvent.put(itemId, events, -1);
+            events++;
+            itemTotals.add(itemId, minorUnits);
+        }
+    }
+
+    private final Stripe[] stripes;
+    private final LongAdder concurrentTotal;
+    private long total;
+
+    public FinesLedger(boolean concurrent) {
+        stripes = new Stripe[concurrent ? STRIPES : 1];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(concurrent ? new ReentrantLock() : NoLock.INSTANCE);
+        }
+        concurrentTotal = concurrent ? new LongAdder() : null;
+    }
+
+    static long toMinorUnits(double rupees) {
+        return Math.round(rupees * MINOR_UNITS_PER_RUPEE);
+    }
+
+    static double toRupees(long minorUnits) {
+        return (double) minorUnits / MINOR_UNITS_PER_RUPEE;
+    }
+
+    // Records a fine charged to an item on the given day; zero fines are ignored
+    public void record(int itemId, int epochDay, double rupees) {
+        recordMinorUnits(itemId, epochDay, toMinorUnits(rupees));
+    }
+
+    public void recordMinorUnits(int itemId, int epochDay, long minorUnits) {
+        if (minorUnits != 0) {
+            appendToStripe(itemId, epochDay, minorUnits);
+            addToTotal(minorUnits);
+        }
+    }
+
+    // Records the fines of a batch return, all charged on one day, adding their
+    // sum to the running total in one update
+    public void recordAll(int[] itemIds, int epochDay, CirculationResults results) {
+        long sum = 0;
+        for (int i = 0; i < itemIds.length; i++) {
+            long minorUnits = toMinorUnits(results.fine(i));
+            if (minorUnits != 0) {
+                appendToStripe(itemIds[i], epochDay, minorUnits);
+                sum += minorUnits;
+            }
+        }
+        addToTotal(sum);
+    }
+
+    private void appendToStripe(int itemId, int epochDay, long minorUnits) {
+        Stripe stripe = stripeFor(itemId);
+        stripe.lock.lock();
+        try {
+            stripe.append(itemId, epochDay, minorUnits);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private void addToTotal(long minorUnits) {
+        if (concurrentTotal != null) {
+            concurrentTotal.add(minorUnits);
+        } else {
+            total += minorUnits;
+        }
+    }
+
+    private Stripe stripeFor(int itemId) {
+        return stripes[ItemTable.mix(itemId) & (stripes.length - 1)];
+    }
+
+    public long getTotalMinorUnits() {
+        return concurrentTotal != null ? concurrentTotal.sum() : total;
+    }
+
+    public double getTotal() {
+        return toRupees(getTotalMinorUnits());
+    }
+
+    public long getItemTotalMinorUnits(int itemId) {
+        Stripe stripe = stripeFor(itemId);
+        stripe.lock.lock();
+        try {
+            return stripe.itemTotals.get(itemId, 0L);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    public double getItemTotal(int itemId) {
+        return toRupees(getItemTotalMinorUnits(itemId));
+    }
+
+    // Every fine charged to the item, oldest first
+    public List<FineEvent> getHistory(int itemId) {
+        List<FineEvent> history = new ArrayList<>();
+        Stripe stripe = stripeFor(itemId);
+        stripe.lock.lock();
+        try {
+            for (int e = (int) stripe.newestEvent.get(itemId, -1); e >= 0; e = stripe.previousEvent[e]) {
+                history.add(new FineEvent(itemId, stripe.epochDays[e], stripe.amounts[e]));
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        Collections.reverse(history);
+        return history;
+    }
+
+    // Passes every event to consumer, each item's events in the order they were charged
+    public void forEachEvent(EventConsumer consumer) {
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                for (int e = 0; e < stripe.events; e++) {
+                    consumer.accept(stripe.itemIds[e], stripe.epochDays[e], stripe.amounts[e]);
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+}
+
+// Struct-of-arrays copy of the scan-relevant item fields, indexed by slot.
+// LibraryItem objects stay authoritative; LibraNet keeps the columns in step so
+// reports can run over primitive arrays instead of chasing item references.
+class CatalogColumns {
+    private int[] ids = new int[8];
+    private short[] typeTags = new short[8];
+    private int[] dueDays = new int[8];
+    private int[] pageCounts = new int[8];
+    private double[] durations = new double[8];
+    private int[] issueNumbers = new int[8];
+
+    public void ensureCapacity(int slots) {
+        if (slots > ids.length) {
+            int capacity = Math.max(ids.length * 2, slots);
+            ids = Arrays.copyOf(ids, capacity);
+            typeTags = Arrays.copyOf(typeTags, capacity);
+            dueDays = Arrays.copyOf(dueDays, capacity);
+            pageCounts = Arrays.copyOf(pageCounts, capacity);
+            durations = Arrays.copyOf(durations, capacity);
+            issueNumbers = Arrays.copyOf(issueNumbers, capacity);
+        }
+    }
+
+    public int capacity() {
+        return ids.length;
+    }
+
+    public void set(int slot, LibraryItem item, int typeTag) {
+        setRow(slot, item.getId(), typeTag, item.getDueEpochDay(),
+                item instanceof Book ? ((Book) item).getPageCount() : 0,
+                item instanceof Audiobook ? ((Audiobook) item).getDuration() : 0.0,
+                item instanceof EMagazine ? ((EMagazine) item).getIssueNumber() : 0);
+    }
+
+    public void setRow(int slot, int id, int typeTag, int dueDay, int pageCount, double duration, int issueNumber) {
+        ids[slot] = id;
+        typeTags[slot] = (short) typeTag;
+        dueDays[slot] = dueDay;
+        pageCounts[slot] = pageCount;
+        durations[slot] = duration;
+        issueNumbers[slot] = issueNumber;
+    }
+
+    public void setDueDay(int slot, int dueDay) {
+        dueDays[slot] = dueDay;
+    }
+
+    // Copies a whole due-date column, starting at slot 0
+    public void setDueDays(int[] loaded) {
+        System.arraycopy(loaded, 0, dueDays, 0, loaded.length);
+    }
+
+    public int id(int slot) {
+        return ids[slot];
+    }
+
+    public int typeTag(int slot) {
+        return typeTags[slot];
+    }
+
+    public int dueDay(int slot) {
+        return dueDays[slot];
+    }
+
+    public int pageCount(int slot) {
+        return pageCounts[slot];
+    }
+
+    public double duration(int slot) {
+        return durations[slot];
+    }
+
+    public int issueNumber(int slot) {
+        return issueNumbers[slot];
+    }
+}
+
+// Borrowed slots grouped by due epoch day, kept sorted so date-range queries
+// visit only the days they cover. Every slot also records its position in its
+// day's bucket, so a return removes it in O(1) by moving the bucket's last slot
+// into its place. A bucket that empties is unlinked from the map; an add that
+// finds an unlinked bucket retries with a fresh one. Loans cluster on a few due
+// days, so borrow and return first look in a small direct-mapped cache of
+// buckets by day, which avoids boxing the day for the map.
+class DueDateIndex {
+    private static final int RECENT_BUCKETS = 256;
+
+    private static final class Bucket {
+        final int day;
+        final Lock lock;
+        int[] slots = new int[4];
+        int size;
+        boolean unlinked;
+
+        Bucket(int day, Lock lock) {
+            this.day = day;
+            this.lock = lock;
+        }
+    }
+
+    private final boolean concurrent;
+    private final NavigableMap<Integer, Bucket> buckets;
+    // Entries may be stale; a bucket is only trusted once locked and seen linked
+    private final Bucket[] recent = new Bucket[RECENT_BUCKETS];
+    private int[] positions = new int[8];
+
+    public DueDateIndex(boolean concurrent) {
+        this.concurrent = concurrent;
+        buckets = concurrent ? new ConcurrentSkipListMap<>() : new TreeMap<>();
+    }
+
+    // Only called with every LibraNet stripe held, so no add or remove is running
+    public void ensureCapacity(int slots) {
+        if (slots > positions.length) {
+            positions = Arrays.copyOf(positions, Math.max(positions.length * 2, slots));
+        }
+    }
+
+    public void add(int slot, int dueDay) {
+        int cached = dueDay & (RECENT_BUCKETS - 1);
+        while (true) {
+            Bucket bucket = recent[cached];
+            if (bucket == null || bucket.day != dueDay) {
+                bucket = buckets.computeIfAbsent(dueDay,
+                        day -> new Bucket(day, concurrent ? new ReentrantLock() : NoLock.INSTANCE));
+                recent[cached] = bucket;
+            }
+            bucket.lock.lock();
+            try {
+                if (bucket.unlinked) {
+                    recent[cached] = null;
+                    continue;
+                }
+                if (bucket.size == bucket.slots.length) {
+                    bucket.slots = Arrays.copyOf(bucket.slots, bucket.size * 2);
+                }
+                positions[slot] = bucket.size;
+                bucket.slots[bucket.size++] = slot;
+                return;
+            } finally {
+                bucket.lock.unlock();
+            }
+        }
+    }
+
+    // Returns false, changing nothing, when slot has no entry for dueDay
+    public boolean remove(int slot, int dueDay) {
+        Bucket bucket = recent[dueDay & (RECENT_BUCKETS - 1)];
+        if (bucket == null || bucket.day != dueDay) {
+            bucket = buckets.get(dueDay);
+        }
+        while (true) {
+            Bucket locked = bucket;
+            if (locked == null) {
+                return false;
+            }
+            locked.lock.lock();
+            try {
+                if (locked.unlinked) {
+                    // A stale cache entry; the slot is in the linked bucket
+                    bucket = buckets.get(dueDay);
+                    continue;
+                }
+                int position = positions[slot];
+                if (position >= locked.size || locked.slots[position] != slot) {
+                    return false;
+                }
+                int last = locked.slots[--locked.size];
+                locked.slots[position] = last;
+                positions[last] = position;
+                if (locked.size == 0) {
+                    locked.unlinked = true;
+                    buckets.remove(dueDay, locked);
+                }
+                return true;
+            } finally {
+                locked.lock.unlock();
+            }
+        }
+    }
+
+    // Slots due on days in [fromDay, toDay], ordered by due day
+    public IntList slotsDueBetween(long fromDay, long toDay) {
+        IntList result = new IntList();
+        if (fromDay > toDay) {
+            return result;
+        }
+        int from = (int) Math.max(fromDay, Integer.MIN_VALUE);
+        int to = (int) Math.min(toDay, Integer.MAX_VALUE);
+        for (Bucket bucket : buckets.subMap(from, true, to, true).values()) {
+            bucket.lock.lock();
+            try {
+                for (int i = 0; i < bucket.size; i++) {
+                    result.add(bucket.slots[i]);
+                }
+            } finally {
+                bucket.lock.unlock();
+            }
+        }
+        return result;
+    }
+
+    // Number of slots due on days in [fromDay, toDay]
+    public int countDueBetween(long fromDay, long toDay) {
+        if (fromDay > toDay) {
+            return 0;
+        }
+        int from = (int) Math.max(fromDay, Integer.MIN_VALUE);
+        int to = (int) Math.min(toDay, Integer.MAX_VALUE);
+        int count = 0;
+        for (Bucket bucket : buckets.subMap(from, true, to, true).values()) {
+            bucket.lock.lock();
+            try {
+                count += bucket.size;
+            } finally {
+                bucket.lock.unlock();
+            }
+        }
+        return count;
+    }
+
+    // Sum over slots due before asOfDay of the days each is overdue
+    public long overdueDays(long asOfDay) {
+        long days = 0;
+        int before = (int) Math.max(Integer.MIN_VALUE, Math.min(asOfDay, Integer.MAX_VALUE));
+        for (Bucket bucket : buckets.headMap(before, false).values()) {
+            bucket.lock.lock();
+            try {
+                days += bucket.size * (asOfDay - bucket.day);
+            } finally {
+                bucket.lock.unlock();
+            }
+        }
+        return days;
+    }
+}
+
+// Source of the current date for the due-date scheduler, as an epoch day
+interface LibraryClock {
+    LibraryClock SYSTEM = () -> LocalDate.now().toEpochDay();
+
+    long today();
+}
+
+// A clock that only moves when told to, for deterministic runs and tests
+class SimulatedClock implements LibraryClock {
+    private volatile long today;
+
+    public SimulatedClock(LocalDate start) {
+        today = start.toEpochDay();
+    }
+
+    @Override
+    public long today() {
+        return today;
+    }
+
+    public void set(LocalDate date) {
+        today = date.toEpochDay();
+    }
+
+    public void advanceDays(int days) {
+        today += days;
+    }
+}
+
+// Callbacks of the due-date scheduler; days are epoch days
+interface DueDateListener {
+    default void dueSoon(int itemId, int dueDay) {
+    }
+
+    default void overdue(int itemId, int dueDay) {
+    }
+
+    // Fine accrued on an overdue loan since its last event, normally one day's
+    // worth; accrued is the loan's total so far
+    default void fineAccrued(int itemId, int day, double amount, double accrued) {
+    }
+}
+
+// Fires reminder, overdue and daily fine-accrual events for every loan from a
+// hierarchical timing wheel with a one-day tick. Each loan is a single entry that
+// moves through its phases: a reminder reminderDays before the due date, the
+// overdue notice the day after it, then one accrual a day until it is cancelled
+// on return. Entries are indexed by catalog slot and linked into wheel buckets
+// through int arrays, so scheduling, cancelling and firing are O(1) with no
+// allocation. The wheel has four levels of 64 buckets (1, 64, 4096 and 262144
+// days wide); an entry sits at the lowest level whose span holds both today and
+// its deadline, and moves down a level each time the wheel reaches its bucket.
+// Time moves only in advance(), which catches up to the clock day by day and
+// first fires anything scheduled for a day already past, such as a loan that
+// was overdue when it was scheduled. Accrued fines are reported to the listener
+// and totalled here; the ledger is still charged when the item is returned.
+// Callbacks run outside the scheduling lock, one advance() at a time, and must
+// not call advance() themselves.
+class DueDateScheduler {
+    private static final int LEVELS = 4;
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    // Bucket numbers of entries too far ahead for the wheel, and of entries
+    // whose day had already passed when they were scheduled
+    private static final int OVERFLOW = LEVELS * WHEEL_SIZE;
+    private static final int LATE = OVERFLOW + 1;
+    private static final int NONE = -1;
+    // Events delivered per hold of the lock while firing
+    private static final int DELIVERY_CHUNK = 1024;
+
+    private static final byte IDLE = 0;
+    private static final byte REMINDER = 1;
+    private static final byte OVERDUE = 2;
+    private static final byte ACCRUING = 3;
+
+    private final LibraryClock clock;
+    private final int reminderDays;
+    private final DueDateListener listener;
+    private final long finePerDay;
+    private final Lock lock;
+    private final Lock advanceLock;
+
+    private final int[] heads = new int[LATE + 1];
+    private int[] next = new int[0];
+    private int[] previous = new int[0];
+    private int[] bucketOf = new int[0];
+    private int[] deadlines = new int[0];
+    private int[] dueDays = new int[0];
+    private int[] itemIds = new int[0];
+    private byte[] phases = new byte[0];
+    // The last day processed
+    private int now;
+    private int scheduled;
+    private long accruedMinorUnits;
+
+    // Fired events waiting to be delivered outside the lock
+    private final byte[] firedPhases = new byte[DELIVERY_CHUNK];
+    private final int[] firedItems = new int[DELIVERY_CHUNK];
+    private final int[] firedDueDays = new int[DELIVERY_CHUNK];
+    private final int[] firedDays = new int[DELIVERY_CHUNK];
+
+    public DueDateScheduler(LibraryClock clock, int reminderDays, DueDateListener listener, boolean concurrent) {
+        if (reminderDays < 0) {
+            throw new IllegalArgumentException("reminderDays must not be negative");
+        }
+        this.clock = clock;
+        this.reminderDays = reminderDays;
+        this.listener = listener;
+        this.finePerDay = FinesLedger.toMinorUnits(LibraryItem.DEFAULT_FINE_RATE);
+        this.lock = concurrent ? new ReentrantLock() : NoLock.INSTANCE;
+        this.advanceLock = concurrent ? new ReentrantLock() : NoLock.INSTANCE;
+        this.now = (int) clock.today();
+        Arrays.fill(heads, NONE);
+    }
+
+    public void ensureCapacity(int slots) {
+        lock.lock();
+        try {
+            if (slots > next.length) {
+                int capacity = Math.max(next.length * 2, slots);
+                next = Arrays.copyOf(next, capacity);
+                previous = Arrays.copyOf(previous, capacity);
+                bucketOf = Arrays.copyOf(bucketOf, capacity);
+                deadlines = Arrays.copyOf(deadlines, capacity);
+                dueDays = Arrays.copyOf(dueDays, capacity);
+                itemIds = Arrays.copyOf(itemIds, capacity);
+                phases = Arrays.copyOf(phases, capacity);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Starts the events of a loan on slot, replacing any it had
+    public void schedule(int slot, int itemId, int dueDay) {
+        lock.lock();
+        try {
+            if (phases[slot] != IDLE) {
+                release(slot);
+            }
+            itemIds[slot] = itemId;
+            dueDays[slot] = dueDay;
+            scheduled++;
+            if (dueDay >= now) {
+                phases[slot] = REMINDER;
+                insert(slot, (int) Math.max((long) dueDay - reminderDays, Integer.MIN_VALUE));
+            } else {
+                phases[slot] = OVERDUE;
+                insert(slot, dueDay + 1);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stops the events of the loan on slot, if any
+    public void cancel(int slot) {
+        lock.lock();
+        try {
+            if (slot < phases.length && phases[slot] != IDLE) {
+                release(slot);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(int slot) {
+        if (phases[slot] == ACCRUING) {
+            // The next accrual was due at the deadline, so the last one was the day before
+            accruedMinorUnits -= ((long) deadlines[slot] - 1 - dueDays[slot]) * finePerDay;
+        }
+        unlink(slot);
+        phases[slot] = IDLE;
+        scheduled--;
+    }
+
+    // Fires every event up to the clock's current day; returns how many fired
+    public long advance() {
+        long target = clock.today();
+        advanceLock.lock();
+        try {
+            long fired = 0;
+            while (true) {
+                int count;
+                lock.lock();
+                try {
+                    if (heads[LATE] != NONE) {
+                        count = fire(LATE, now);
+                    } else if (heads[now & (WHEEL_SIZE - 1)] != NONE) {
+                        // Events of the current day left over from the last chunk
+                        count = fire(now & (WHEEL_SIZE - 1), now);
+                    } else if (now < target) {
+                        tick();
+                        continue;
+                    } else {
+                        return fired;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                fired += count;
+                deliver(count);
+            }
+        } finally {
+            advanceLock.unlock();
+        }
+    }
+
+    // Moves to the next day and cascades the buckets that start on it, which
+    // leaves the day's events in its level-0 bucket
+    private void tick() {
+        int day = ++now;
+        if ((day & ((1 << (LEVELS * WHEEL_BITS)) - 1)) == 0) {
+            cascade(OVERFLOW);
+        }
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((day & ((1 << (level * WHEEL_BITS)) - 1)) == 0) {
+                cascade(level * WHEEL_SIZE + ((day >>> (level * WHEEL_BITS)) & (WHEEL_SIZE - 1)));
+            }
+        }
+    }
+
+    private void cascade(int bucket) {
+        int slot = heads[bucket];
+        heads[bucket] = NONE;
+        while (slot != NONE) {
+            int following = next[slot];
+            link(slot, deadlines[slot]);
+            slot = following;
+        }
+    }
+
+    // Takes up to a chunk of entries from bucket, records their events as of day
+    // and moves each loan on to its next phase
+    private int fire(int bucket, int day) {
+        int count = 0;
+        while (heads[bucket] != NONE && count < DELIVERY_CHUNK) {
+            int slot = heads[bucket];
+            unlink(slot);
+            byte phase = phases[slot];
+            firedPhases[count] = phase;
+            firedItems[count] = itemIds[slot];
+            firedDueDays[count] = dueDays[slot];
+            firedDays[count] = day;
+            count++;
+            if (phase == REMINDER) {
+                phases[slot] = OVERDUE;
+                insert(slot, dueDays[slot] + 1);
+            } else {
+                // The overdue event accrues every day since the due date at once
+                accruedMinorUnits += (phase == OVERDUE ? (long) day - dueDays[slot] : 1) * finePerDay;
+                phases[slot] = ACCRUING;
+                insert(slot, day + 1);
+            }
+        }
+        return count;
+    }
+
+    private void deliver(int count) {
+        double fine = FinesLedger.toRupees(finePerDay);
+        for (int i = 0; i < count; i++) {
+            int itemId = firedItems[i];
+            int dueDay = firedDueDays[i];
+            switch (firedPhases[i]) {
+                case REMINDER:
+                    listener.dueSoon(itemId, dueDay);
+                    break;
+                case OVERDUE:
+                    listener.overdue(itemId, dueDay);
+                    double caughtUp = fine * ((long) firedDays[i] - dueDay);
+                    listener.fineAccrued(itemId, firedDays[i], caughtUp, caughtUp);
+                    break;
+                default:
+                    listener.fineAccrued(itemId, firedDays[i], fine, fine * ((long) firedDays[i] - dueDay));
+            }
+        }
+    }
+
+    // Links slot into the bucket for its deadline; a deadline already passed
+    // fires on the next advance
+    private void insert(int slot, int deadline) {
+        if (deadline <= now) {
+            deadlines[slot] = now;
+            linkInto(slot, LATE);
+        } else {
+            link(slot, deadline);
+        }
+    }
+
+    // Links slot at the lowest level whose span holds both now and deadline,
+    // which is today's level-0 bucket when deadline is now
+    private void link(int slot, int deadline) {
+        deadlines[slot] = deadline;
+        int distance = deadline ^ now;
+        int bucket = OVERFLOW;
+        for (int level = 0; level < LEVELS; level++) {
+            if ((distance >>> ((level + 1) * WHEEL_BITS)) == 0) {
+                bucket = level * WHEEL_SIZE + ((deadline >>> (level * WHEEL_BITS)) & (WHEEL_SIZE - 1));
+                break;
+            }
+        }
+        linkInto(slot, bucket);
+    }
+
+    private void linkInto(int slot, int bucket) {
+        int head = heads[bucket];
+        next[slot] = head;
+        previous[slot] = NONE;
+        if (head != NONE) {
+            previous[head] = slot;
+        }
+        heads[bucket] = slot;
+        bucketOf[slot] = bucket;
+    }
+
+    private void unlink(int slot) {
+        int before = previous[slot];
+        int after = next[slot];
+        if (before == NONE) {
+            heads[bucketOf[slot]] = after;
+        } else {
+            next[before] = after;
+        }
+        if (after != NONE) {
+            previous[after] = before;
+        }
+    }
+
+    public int getScheduledLoans() {
+        lock.lock();
+        try {
+            return scheduled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Fines accrued so far on loans that are still out
+    public double getAccruedFines() {
+        lock.lock();
+        try {
+            return FinesLedger.toRupees(accruedMinorUnits);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public LocalDate getCurrentDate() {
+        lock.lock();
+        try {
+            return LocalDate.ofEpochDay(now);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+
+// Bounded LRU cache of title and author search results, keyed by the lowercased
+// query and holding the IDs of the matching items in ID order. An added or
+// replaced item drops only the results whose query its lowercased title or
+// author contains; a mask of the characters in each query rules out most
+// entries without a string search. Callers hold the catalog lock, the read lock
+// to look up and store and the write lock to invalidate, so a result computed
+// before an add can never be stored after it.
+class SearchCache {
+    enum Field {
+        TITLE, AUTHOR
+    }
+
+    // IDs held across all entries, past which the least recently used are evicted;
+    // a single result may take up to a sixteenth of them
+    private static final int MAX_CACHED_IDS = 1 << 22;
+    static final int MAX_RESULT_IDS = MAX_CACHED_IDS / 16;
+
+    private final int capacity;
+    private final Lock lock;
+    private final LinkedHashMap<String, Entry> entries;
+    private long cachedIds;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public SearchCache(int capacity, boolean concurrent) {
+        this.capacity = capacity;
+        this.lock = concurrent ? new ReentrantLock() : NoLock.INSTANCE;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > SearchCache.this.capacity) {
+                    cachedIds -= eldest.getValue().idCount();
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // The cached IDs for query, or null
+    int[] get(Field field, String query) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(query);
+            int[] ids = entry == null ? null : entry.ids[field.ordinal()];
+            if (ids == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+            return ids;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Callers skip results longer than MAX_RESULT_IDS
+    void put(Field field, String query, int[] ids) {
+        if (capacity == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            Entry entry = entries.get(query);
+            if (entry == null) {
+                entry = new Entry(charMask(query));
+                entries.put(query, entry);
+            }
+            int[] previous = entry.ids[field.ordinal()];
+            cachedIds += ids.length - (previous == null ? 0 : previous.length);
+            entry.ids[field.ordinal()] = ids;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (cachedIds > MAX_CACHED_IDS) {
+                Entry evicted = eldest.next();
+                cachedIds -= evicted.idCount();
+                eldest.remove();
+                evictions++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops the results item would now appear in
+    void invalidate(LibraryItem item) {
+        lock.lock();
+        try {
+            if (entries.isEmpty()) {
+                return;
+            }
+            String title = item.getTitle().toLowerCase();
+            String author = item.getAuthor().toLowerCase();
+            long titleMask = charMask(title);
+            long authorMask = charMask(author);
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> mapEntry = iterator.next();
+                Entry entry = mapEntry.getValue();
+                String query = mapEntry.getKey();
+                boolean dropped = drop(entry, Field.TITLE, titleMask, title, query)
+                        | drop(entry, Field.AUTHOR, authorMask, author, query);
+                if (dropped && entry.ids[0] == null && entry.ids[1] == null) {
+                    iterator.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean drop(Entry entry, Field field, long textMask, String text, String query) {
+        int[] ids = entry.ids[field.ordinal()];
+        if (ids != null && (entry.mask & ~textMask) == 0 && text.contains(query)) {
+            cachedIds -= ids.length;
+            entry.ids[field.ordinal()] = null;
+            invalidations++;
+            return true;
+        }
+        return false;
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            for (Entry entry : entries.values()) {
+                invalidations += (entry.ids[0] != null ? 1 : 0) + (entry.ids[1] != null ? 1 : 0);
+            }
+            entries.clear();
+            cachedIds = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Stats stats() {
+        lock.lock();
+        try {
+            return new Stats(entries.size(), capacity, hits, misses, evictions, invalidations);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // One bit per character value modulo 64; text can contain query only if its
+    // mask covers the query's
+    private static long charMask(String text) {
+        long mask = 0;
+        for (int i = 0; i < text.length(); i++) {
+            mask |= 1L << text.charAt(i);
+        }
+        return mask;
+    }
+
+    private static final class Entry {
+        final long mask;
+        // Indexed by Field ordinal; null where that search is not cached
+        final int[][] ids = new int[2][];
+
+        Entry(long mask) {
+            this.mask = mask;
+        }
+
+        int idCount() {
+            return (ids[0] == null ? 0 : ids[0].length) + (ids[1] == null ? 0 : ids[1].length);
+        }
+    }
+
+    static final class Stats {
+        private final int size;
+        private final int capacity;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long invalidations;
+
+        Stats(int size, int capacity, long hits, long misses, long evictions, long invalidations) {
+            this.size = size;
+            this.capacity = capacity;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.invalidations = invalidations;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public double getHitRatio() {
+            return hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        // Cached results dropped because an added item could appear in them
+        public long getInvalidations() {
+            return invalidations;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Search cache: %d of %d queries, %d hits, %d misses (%.1f%% hit ratio), "
+                    + "%d evictions, %d invalidations",
+                    size, capacity, hits, misses, getHitRatio() * 100, evictions, invalidations);
+        }
+    }
+}
+
+// Outcome of one item in a batch borrow or return
+enum CirculationStatus {
+    OK,
+    NOT_FOUND,
+    NOT_AVAILABLE,
+    NOT_BORROWED,
+    INVALID_DATE;
+
+    private static final CirculationStatus[] VALUES = values();
+
+    static CirculationStatus of(int code) {
+        return VALUES[code];
+    }
+}
+
+// Per-item results of a batch borrow or return, in the order of the IDs passed
+// in: a status code byte and the fine charged. One instance can be reused for
+// many batches; it only grows.
+class CirculationResults {
+    private byte[] statuses = new byte[16];
+    private double[] fines = new double[16];
+    private int size;
+
+    void reset(int size) {
+        if (size > statuses.length) {
+            statuses = new byte[size];
+            fines = new double[size];
+        }
+        this.size = size;
+    }
+
+    void set(int index, CirculationStatus status, double fine) {
+        statuses[index] = (byte) status.ordinal();
+        fines[index] = fine;
+    }
+
+    void fill(CirculationStatus status) {
+        Arrays.fill(statuses, 0, size, (byte) status.ordinal());
+        Arrays.fill(fines, 0, size, 0.0);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public CirculationStatus status(int index) {
+        return CirculationStatus.of(statuses[Objects.checkIndex(index, size)]);
+    }
+
+    public double fine(int index) {
+        return fines[Objects.checkIndex(index, size)];
+    }
+
+    public int successCount() {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            count += statuses[i] == 0 ? 1 : 0;
+        }
+        return count;
+    }
+
+    public double totalFine() {
+        double total = 0.0;
+        for (int i = 0; i < size; i++) {
+            total += fines[i];
+        }
+        return total;
+    }
+}
+
+// One page of a title or author search, in item ID order. The next cursor is the
+// ID of the page's last item, and a search resumed from it starts after that ID,
+// so pages neither repeat nor skip items when the catalog changes in between.
+class SearchPage {
+    // Cursor for the first page, below every item ID
+    static final long FIRST = Long.MIN_VALUE;
+
+    private final List<LibraryItem> items;
+    private final long nextCursor;
+    private final boolean hasMore;
+
+    SearchPage(List<LibraryItem> items, long nextCursor, boolean hasMore) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+        this.hasMore = hasMore;
+    }
+
+    public List<LibraryItem> getItems() {
+        return items;
+    }
+
+    // The cursor passed in when the page is empty
+    public long getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasMore() {
+        return hasMore;
+    }
+}
+
+// Conditions for LibraNet.query, all of which an item must meet. Text conditions
+// match anywhere in the title or author, ignoring case. Ranges include both
+// ends, and a page-count, duration or issue range only matches the item class
+// with that field. Setting a condition again replaces it.
+class CatalogQuery {
+    String title;
+    String author;
+    Class<? extends LibraryItem> type;
+    Boolean available;
+    boolean hasDueRange;
+    long dueFromDay;
+    long dueToDay;
+    boolean hasPageRange;
+    int minPages;
+    int maxPages;
+    boolean hasDurationRange;
+    double minDuration;
+    double maxDuration;
+    boolean hasIssueRange;
+    int minIssue;
+    int maxIssue;
+
+    public CatalogQuery titleContains(String text) {
+        title = Objects.requireNonNull(text);
+        return this;
+    }
+
+    public CatalogQuery authorContains(String text) {
+        author = Objects.requireNonNull(text);
+        return this;
+    }
+
+    // Items of itemClass or a subclass
+    public CatalogQuery ofType(Class<? extends LibraryItem> itemClass) {
+        type = Objects.requireNonNull(itemClass);
+        return this;
+    }
+
+    public CatalogQuery available() {
+        available = true;
+        return this;
+    }
+
+    public CatalogQuery borrowed() {
+        available = false;
+        return this;
+    }
+
+    // Borrowed items due on a day from from to to
+    public CatalogQuery dueBetween(LocalDate from, LocalDate to) {
+        hasDueRange = true;
+        dueFromDay = from.toEpochDay();
+        dueToDay = to.toEpochDay();
+        return this;
+    }
+
+    public CatalogQuery pageCountBetween(int min, int max) {
+        hasPageRange = true;
+        minPages = min;
+        maxPages = max;
+        return this;
+    }
+
+    // Audiobooks from min to max hours long
+    public CatalogQuery durationBetween(double min, double max) {
+        hasDurationRange = true;
+        minDuration = min;
+        maxDuration = max;
+        return this;
+    }
+
+    public CatalogQuery issueNumberBetween(int min, int max) {
+        hasIssueRange = true;
+        minIssue = min;
+        maxIssue = max;
+        return this;
+    }
+}
+
+// How LibraNet ran a CatalogQuery: the steps in the order applied, each with the
+// items the statistics estimated would match its condition, the rows estimated
+// to remain after it (taking conditions as independent), and the rows that did
+class QueryPlan {
+    static final class Step {
+        private final String operation;
+        private final String condition;
+        private final long estimatedMatches;
+        private final long estimatedRows;
+        private final long actualRows;
+
+        Step(String operation, String condition, long estimatedMatches, long estimatedRows, long actualRows) {
+            this.operation = operation;
+            this.condition = condition;
+            this.estimatedMatches = estimatedMatches;
+            this.estimatedRows = estimatedRows;
+            this.actualRows = actualRows;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getCondition() {
+            return condition;
+        }
+
+        public long getEstimatedMatches() {
+            return estimatedMatches;
+        }
+
+        public long getEstimatedRows() {
+            return estimatedRows;
+        }
+
+        public long getActualRows() {
+            return actualRows;
+        }
+    }
+
+    private final int catalogSize;
+    private final List<Step> steps = new ArrayList<>();
+    private List<LibraryItem> items = List.of();
+
+    QueryPlan(int catalogSize) {
+        this.catalogSize = catalogSize;
+    }
+
+    void addStep(String operation, String condition, long estimatedMatches, long estimatedRows, long actualRows) {
+        steps.add(new Step(operation, condition, estimatedMatches, estimatedRows, actualRows));
+    }
+
+    void setItems(List<LibraryItem> items) {
+        this.items = items;
+    }
+
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    public List<LibraryItem> getItems() {
+        return items;
+    }
+
+    public long getEstimatedRows() {
+        return steps.isEmpty() ? catalogSize : steps.get(steps.size() - 1).estimatedRows;
+    }
+
+    public int getActualRows() {
+        return items.size();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("Query plan over ").append(catalogSize).append(" items\n");
+        text.append(String.format("%-4s %-8s %-40s %12s %12s %12s%n",
+                "Step", "Access", "Condition", "Est. matches", "Est. rows", "Rows"));
+        for (int i = 0; i < steps.size(); i++) {
+            Step step = steps.get(i);
+            text.append(String.format("%-4d %-8s %-40s %12d %12d %12d%n", i + 1, step.operation,
+                    step.condition, step.estimatedMatches, step.estimatedRows, step.actualRows));
+        }
+        return text.toString();
+    }
+}
+
+// Writes item listings with the text of each item's toString, appended into one
+// reusable buffer by LibraryItem.appendTo and sent to the channel in large
+// encoded chunks instead of a flushed println per line.
+class ItemRenderer implements Flushable {
+    // Characters buffered before they are encoded and written out
+    private static final int CHUNK_CHARS = 1 << 15;
+
+    private final WritableByteChannel channel;
+    private final CharsetEncoder encoder;
+    // Both grow to a chunk as needed, so a short listing stays small
+    private final StringBuilder text = new StringBuilder();
+    private ByteBuffer bytes = ByteBuffer.allocate(0);
+    private final String lineSeparator = System.lineSeparator();
+
+    public ItemRenderer(WritableByteChannel channel, Charset charset) {
+        this.channel = channel;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    // A renderer writing to System.out as it is now, in the console's encoding
+    public static ItemRenderer toConsole() {
+        return new ItemRenderer(Channels.newChannel(System.out), consoleCharset());
+    }
+
+    static Charset consoleCharset() {
+        String name = System.getProperty("stdout.encoding", System.getProperty("sun.stdout.encoding"));
+        return name != null && Charset.isSupported(name) ? Charset.forName(name) : Charset.defaultCharset();
+    }
+
+    public ItemRenderer println(LibraryItem item) throws IOException {
+        item.appendTo(text);
+        return endLine();
+    }
+
+    public ItemRenderer println(CharSequence line) throws IOException {
+        text.append(line);
+        return endLine();
+    }
+
+    private ItemRenderer endLine() throws IOException {
+        text.append(lineSeparator);
+        if (text.length() >= CHUNK_CHARS) {
+            flush();
+        }
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        int needed = (int) (Math.min(text.length(), CHUNK_CHARS) * encoder.maxBytesPerChar()) + 16;
+        if (bytes.capacity() < needed) {
+            bytes = ByteBuffer.allocate(needed);
+        }
+        CharBuffer chars = CharBuffer.wrap(text);
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, true);
+            drain();
+            if (result.isUnderflow()) {
+                break;
+            }
+        }
+        encoder.flush(bytes);
+        drain();
+        encoder.reset();
+        text.setLength(0);
+    }
+
+    private void drain() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+}
+
+// Library management system
+class LibraNet {
+    private static final int LOCK_STRIPES = 64;
+    // Smallest addItems batch that drops the text indexes for a later rebuild
+    private static final int REINDEX_BATCH_SIZE = 1024;
+    // returnLocked code for an unknown ID, next to LibraryItem.NOT_BORROWED
+    private static final double ITEM_NOT_FOUND = -2.0;
+    // Distinct title and author queries whose results are kept
+    private static final int SEARCH_CACHE_ENTRIES = 256;
+    // A query ANDs in the slots an index lists when there are at most this many
+    // times as many as slots left, and otherwise tests the slots left instead
+    private static final int INDEX_PROBE_RATIO = 4;
+    // Slots tested to estimate how many items a column range matches
+    private static final int ESTIMATE_SAMPLES = 1024;
+
+    // Items get a dense slot in insertion order; the bitset marks available slots
+    private final ItemTable items;
+    private final FinesLedger fines;
+    private final TitleIndex titleIndex;
+    private final AuthorIndex authorIndex;
+    private final SlotBits available;
+    private final CatalogColumns columns;
+    private final DueDateIndex dueDates;
+    private final SearchCache searchCache;
+    // One slot bitset per concrete item class, created on first use; the class's
+    // position in itemTypes is its type tag in the columns
+    private final Map<Class<?>, BitSet> typePartitions;
+    private final List<Class<?>> itemTypes;
+    private final Map<Class<?>, List<BitSet>> partitionsByQueryType;
+
+    // In concurrent mode, borrow and return hold only the stripe lock of their item,
+    // while addItem takes the catalog write lock and searches and listings the read
+    // lock. Lookups by ID take no lock. In the default mode every lock is a no-op.
+    private final boolean concurrent;
+    private final Lock[] stripes;
+    private final Lock catalogReadLock;
+    private final Lock catalogWriteLock;
+    private volatile CirculationLog log;
+    // Last circulation log sequence the catalog reflects before a log is attached,
+    // from a loaded snapshot and then from replay
+    private long restoredLogSequence;
+    private volatile DueDateScheduler scheduler;
+    // Source of items not yet loaded, and whether the text indexes are built;
+    // they change only when a snapshot is loaded or a large batch is added
+    private CatalogSnapshot snapshot;
+    private volatile boolean textIndexed = true;
+
+    public LibraNet() {
+        this(false);
+    }
+
+    private LibraNet(boolean concurrent) {
+        items = new ItemTable();
+        fines = new FinesLedger(concurrent);
+        titleIndex = new TitleIndex();
+        authorIndex = new AuthorIndex();
+        available = new SlotBits();
+        columns = new CatalogColumns();
+        dueDates = new DueDateIndex(concurrent);
+        searchCache = new SearchCache(SEARCH_CACHE_ENTRIES, concurrent);
+        typePartitions = new HashMap<>();
+        itemTypes = new ArrayList<>();
+        partitionsByQueryType = new ConcurrentHashMap<>();
+
+        this.concurrent = concurrent;
+        if (concurrent) {
+            stripes = new Lock[LOCK_STRIPES];
+            for (int i = 0; i < stripes.length; i++) {
+                stripes[i] = new ReentrantLock();
+            }
+            ReentrantReadWriteLock catalogLock = new ReentrantReadWriteLock();
+            catalogReadLock = catalogLock.readLock();
+            catalogWriteLock = catalogLock.writeLock();
+        } else {
+            stripes = new Lock[] {NoLock.INSTANCE};
+            catalogReadLock = NoLock.INSTANCE;
+            catalogWriteLock = NoLock.INSTANCE;
+        }
+    }
+
+    // Creates a LibraNet that is safe to share between threads
+    public static LibraNet concurrent() {
+        return new LibraNet(true);
+    }
+
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+
+    public void addItem(LibraryItem item) throws LibraryException {
+        requireLoggable(item);
+        long logSequence;
+        catalogWriteLock.lock();
+        try {
+            if (items.slotOf(item.getId()) < 0) {
+                ensureSlotCapacity(items.size() + 1);
+            }
+            logSequence = insertItem(item);
+        } finally {
+            sortTextIndexes();
+            catalogWriteLock.unlock();
+        }
+        commitLog(logSequence);
+    }
+
+    // Adds a batch of items under one hold of the catalog lock and one log commit.
+    // When the batch is large next to the catalog, the text indexes are dropped
+    // instead of updated item by item; the next title or author search rebuilds them.
+    public void addItems(List<? extends LibraryItem> batch) throws LibraryException {
+        for (LibraryItem item : batch) {
+            requireLoggable(item);
+        }
+        long logSequence = 0;
+        catalogWriteLock.lock();
+        try {
+            ensureSlotCapacity(items.size() + batch.size());
+            if (textIndexed && batch.size() >= Math.max(REINDEX_BATCH_SIZE, items.size() / 16)) {
+                titleIndex.clear();
+                authorIndex.clear();
+                textIndexed = false;
+                searchCache.clear();
+            }
+            for (LibraryItem item : batch) {
+                logSequence = Math.max(logSequence, insertItem(item));
+            }
+        } finally {
+            sortTextIndexes();
+            catalogWriteLock.unlock();
+        }
+        commitLog(logSequence);
+    }
+
+    // With a log attached, only the item classes the log has kind codes for can be added
+    private void requireLoggable(LibraryItem item) throws LibraryException {
+        if (log != null && CirculationLog.kindOf(item) == 0) {
+            throw new LibraryException("The circulation log stores only Book, Audiobook and EMagazine items, not "
+                    + item.getClass().getName());
+        }
+    }
+
+    // Caller holds the catalog write lock and has made room for the slot.
+    // Returns the log sequence of the add, or 0 without a log.
+    private long insertItem(LibraryItem item) {
+        long logSequence = 0;
+        Lock stripe = stripeFor(item.getId());
+        stripe.lock();
+        try {
+            if (log != null) {
+                logSequence = log.appendAddItem(item);
+            }
+            LibraryItem previous = items.get(item.getId());
+            int slot = items.put(item);
+            item.setOwner(this);
+            if (previous != null && previous != item) {
+                previous.setOwner(null);
+            }
+            if (previous != null) {
+                typePartitions.get(previous.getClass()).clear(slot);
+                if (!available.get(slot)) {
+                    dueDates.remove(slot, columns.dueDay(slot));
+                    if (scheduler != null) {
+                        scheduler.cancel(slot);
+                    }
+                }
+                searchCache.invalidate(previous);
+            }
+            available.set(slot, item.checkAvailability());
+            partitionFor(item.getClass()).set(slot);
+            columns.set(slot, item, itemTypes.indexOf(item.getClass()));
+            if (!item.checkAvailability()) {
+                dueDates.add(slot, item.getDueEpochDay());
+                if (scheduler != null) {
+                    scheduler.schedule(slot, item.getId(), item.getDueEpochDay());
+                }
+            }
+            if (textIndexed) {
+                if (previous != null) {
+                    titleIndex.replace(previous, item);
+                    authorIndex.replace(previous, item);
+                } else {
+                    titleIndex.add(item);
+                    authorIndex.add(item);
+                }
+            }
+            searchCache.invalidate(item);
+        } finally {
+            stripe.unlock();
+        }
+        return logSequence;
+    }
+
+    // Grows the per-slot arrays with every stripe held, so no borrow or return
+    // is writing to the arrays being replaced
+    private void ensureSlotCapacity(int slots) {
+        if (slots <= columns.capacity() && slots <= available.capacity()) {
+            return;
+        }
+        for (Lock stripe : stripes) {
+            stripe.lock();
+        }
+        try {
+            columns.ensureCapacity(slots);
+            available.ensureCapacity(columns.capacity());
+            dueDates.ensureCapacity(columns.capacity());
+            if (scheduler != null) {
+                scheduler.ensureCapacity(columns.capacity());
+            }
+        } finally {
+            for (Lock stripe : stripes) {
+                stripe.unlock();
+            }
+        }
+    }
+
+    public LibraryItem getItem(int id) {
+        return items.get(id);
+    }
+
+    // The String adapters report a missing or unavailable item before a bad date,
+    // then delegate to the epoch-day overloads, which check again under the lock
+    public void borrowItem(int id, String borrowDate) throws LibraryException {
+        if (!requireItem(id).checkAvailability()) {
+            throw new LibraryException("Item is not available for borrowing", false);
+        }
+        borrowItem(id, LibraryItem.parseEpochDay(borrowDate));
+    }
+
+    public void borrowItem(int id, LocalDate borrowDate) throws LibraryException {
+        borrowItem(id, LibraryItem.toEpochDay(borrowDate));
+    }
+
+    public void borrowItem(int id, int borrowEpochDay) throws LibraryException {
+        borrow(id, null, borrowEpochDay);
+    }
+
+    // Borrows and returns called on an item itself land here, so they reach the
+    // bitset, indexes, log and ledger like any other. An item replaced in the
+    // meantime no longer belongs to the catalog and only changes its own state.
+    void borrowItem(LibraryItem item, int borrowEpochDay) throws LibraryException {
+        borrow(item.getId(), item, borrowEpochDay);
+    }
+
+    double returnItem(LibraryItem item, int returnEpochDay) {
+        return giveBack(item.getId(), item, returnEpochDay);
+    }
+
+    // With expected set, acts on that item, whether or not it is still in the catalog
+    private void borrow(int id, LibraryItem expected, int borrowEpochDay) throws LibraryException {
+        long logSequence = 0;
+        Lock stripe = stripeFor(id);
+        stripe.lock();
+        try {
+            int slot = expected == null ? requireSlot(id) : ownedSlot(expected);
+            LibraryItem item = slot < 0 ? expected : items.itemAt(slot);
+            if (!item.tryBorrow(borrowEpochDay)) {
+                throw new LibraryException("Item is not available for borrowing", false);
+            }
+            if (slot >= 0) {
+                markBorrowed(slot, item);
+                if (log != null) {
+                    logSequence = log.appendBorrow(id, borrowEpochDay);
+                }
+            }
+        } finally {
+            stripe.unlock();
+        }
+        commitLog(logSequence);
+    }
+
+    public double returnItem(int id, String returnDate) throws LibraryException {
+        if (requireItem(id).checkAvailability()) {
+            throw new LibraryException("Item was not borrowed", false);
+        }
+        return returnItem(id, LibraryItem.parseEpochDay(returnDate));
+    }
+
+    public double returnItem(int id, LocalDate returnDate) throws LibraryException {
+        return returnItem(id, LibraryItem.toEpochDay(returnDate));
+    }
+
+    public double returnItem(int id, int returnEpochDay) throws LibraryException {
+        requireSlot(id);
+        double fine = giveBack(id, null, returnEpochDay);
+        if (fine == LibraryItem.NOT_BORROWED) {
+            throw new LibraryException("Item was not borrowed", false);
+        }
+        return fine;
+    }
+
+    // Returns the fine, or NOT_BORROWED
+    private double giveBack(int id, LibraryItem expected, int returnEpochDay) {
+        long logSequence = 0;
+        double fine;
+        boolean owned;
+        Lock stripe = stripeFor(id);
+        stripe.lock();
+        try {
+            int slot = expected == null ? items.slotOf(id) : ownedSlot(expected);
+            owned = slot >= 0;
+            fine = (owned ? items.itemAt(slot) : expected).tryReturn(returnEpochDay);
+            if (owned && fine != LibraryItem.NOT_BORROWED) {
+                markReturned(slot);
+                if (log != null) {
+                    logSequence = log.appendReturn(id, returnEpochDay, fine);
+                }
+            }
+        } finally {
+            stripe.unlock();
+        }
+        if (owned && fine > 0) {
+            fines.record(id, returnEpochDay, fine);
+        }
+        commitLog(logSequence);
+        return fine;
+    }
+
+    // Replays a logged return, charging the fine the log recorded instead of
+    // working it out again
+    void restoreReturn(int id, int returnEpochDay, double fine) throws LibraryException {
+        long logSequence = 0;
+        Lock stripe = stripeFor(id);
+        stripe.lock();
+        try {
+            int slot = requireSlot(id);
+            if (items.itemAt(slot).tryReturn(returnEpochDay) == LibraryItem.NOT_BORROWED) {
+                throw new LibraryException("Item was not borrowed", false);
+            }
+            markReturned(slot);
+            if (log != null) {
+                logSequence = log.appendReturn(id, returnEpochDay, fine);
+            }
+        } finally {
+            stripe.unlock();
+        }
+        if (fine > 0) {
+            fines.record(id, returnEpochDay, fine);
+        }
+        commitLog(logSequence);
+    }
+
+    // The slot of item, or -1 once it has been replaced; caller holds its stripe
+    private int ownedSlot(LibraryItem item) {
+        int slot = items.slotOf(item.getId());
+        return slot >= 0 && items.itemAt(slot) == item ? slot : -1;
+    }
+
+    // Non-throwing counterparts of borrowItem and returnItem for callers that expect
+    // many rejections: the status takes the place of the exception, with the same
+    // checks in the same order. tryReturnItem puts the status and fine in result.
+    public CirculationStatus tryBorrowItem(int id, String borrowDate) {
+        LibraryItem item = items.get(id);
+        if (item == null) {
+            return CirculationStatus.NOT_FOUND;
+        } else if (!item.checkAvailability()) {
+            return CirculationStatus.NOT_AVAILABLE;
+        }
+        long epochDay = LibraryItem.tryParseEpochDay(borrowDate);
+        return epochDay == LibraryItem.INVALID_EPOCH_DAY
+                ? CirculationStatus.INVALID_DATE : tryBorrowItem(id, (int) epochDay);
+    }
+
+    public CirculationStatus tryBorrowItem(int id, int borrowEpochDay) {
+        long logSequence = 0;
+        CirculationStatus status;
+        Lock stripe = stripeFor(id);
+        stripe.lock();
+        try {
+            status = borrowLocked(id, borrowEpochDay);
+            if (status == CirculationStatus.OK && log != null) {
+                logSequence = log.appendBorrow(id, borrowEpochDay);
+            }
+        } finally {
+            stripe.unlock();
+        }
+        commitLog(logSequence);
+        return status;
+    }
+
+    public CirculationStatus tryReturnItem(int id, String returnDate, CirculationResults result) {
+        result.reset(1);
+        LibraryItem item = items.get(id);
+        CirculationStatus status = item == null ? CirculationStatus.NOT_FOUND
+                : item.checkAvailability() ? CirculationStatus.NOT_BORROWED : null;
+        long epochDay = LibraryItem.tryParseEpochDay(returnDate);
+        if (status == null && epochDay == LibraryItem.INVALID_EPOCH_DAY) {
+            status = CirculationStatus.INVALID_DATE;
+        }
+        if (status != null) {
+            result.set(0, status, 0.0);
+            return status;
+        }
+        return tryReturnItem(id, (int) epochDay, result);
+    }
+
+    public CirculationStatus tryReturnItem(int id, int returnEpochDay, CirculationResults result) {
+        result.reset(1);
+        long logSequence = 0;
+        double fine;
+        Lock stripe = stripeFor(id);
+        stripe.lock();
+        try {
+            fine = returnLocked(id, returnEpochDay);
+            if (fine >= 0 && log != null) {
+                logSequence = log.appendReturn(id, returnEpochDay, fine);
+            }
+        } finally {
+            stripe.unlock();
+        }
+        CirculationStatus status = returnStatus(fine);
+        result.set(0, status, Math.max(fine, 0.0));
+        if (fine > 0) {
+            fines.record(id, returnEpochDay, fine);
+        }
+        commitLog(logSequence);
+        return status;
+    }
+
+    // Borrows a stack of items on one date in a single pass. Failures are reported
+    // per item in the results, in the order of ids, instead of thrown.
+    public CirculationResults borrowItems(int[] ids, LocalDate borrowDate) {
+        CirculationResults results = new CirculationResults();
+        borrowItems(ids, borrowDate, results);
+        return results;
+    }
+
+    // Same, filling a results object the caller reuses across batches
+    public void borrowItems(int[] ids, LocalDate borrowDate, CirculationResults results) {
+        results.reset(ids.length);
+        long epochDay = borrowDate.toEpochDay();
+        if (!LibraryItem.isValidEpochDay(epochDay)) {
+            results.fill(CirculationStatus.INVALID_DATE);
+            return;
+        }
+        long logSequence = 0;
+        for (int i = 0; i < ids.length; i++) {
+            int id = ids[i];
+            Lock stripe = stripeFor(id);
+            stripe.lock();
+            try {
+                CirculationStatus status = borrowLocked(id, (int) epochDay);
+                if (status == CirculationStatus.OK && log != null) {
+                    logSequence = log.appendBorrow(id, (int) epochDay);
+                }
+                results.set(i, status, 0.0);
+            } finally {
+                stripe.unlock();
+            }
+        }
+        commitLog(logSequence);
+    }
+
+    // Returns a stack of items on one date in a single pass; the fines of the
+    // whole batch reach the ledger's running total in one update
+    public CirculationResults returnItems(int[] ids, LocalDate returnDate) {
+        CirculationResults results = new CirculationResults();
+        returnItems(ids, returnDate, results);
+        return results;
+    }
+
+    public void returnItems(int[] ids, LocalDate returnDate, CirculationResults results) {
+        results.reset(ids.length);
+        long epochDay = returnDate.toEpochDay();
+        if (!LibraryItem.isValidEpochDay(epochDay)) {
+            results.fill(CirculationStatus.INVALID_DATE);
+            return;
+        }
+        long logSequence = 0;
+        boolean fined = false;
+        for (int i = 0; i < ids.length; i++) {
+            int id = ids[i];
+            Lock stripe = stripeFor(id);
+            stripe.lock();
+            try {
+                double fine = returnLocked(id, (int) epochDay);
+                if (fine >= 0 && log != null) {
+                    logSequence = log.appendReturn(id, (int) epochDay, fine);
+                }
+                results.set(i, returnStatus(fine), Math.max(fine, 0.0));
+                fined |= fine > 0;
+            } finally {
+                stripe.unlock();
+            }
+        }
+        if (fined) {
+            fines.recordAll(ids, (int) epochDay, results);
+        }
+        commitLog(logSequence);
+    }
+
+    // Archives an e-magazine through the catalog so the change is logged
+    public void archiveIssue(int id) throws LibraryException {
+        LibraryItem item = requireItem(id);
+        if (!(item instanceof EMagazine)) {
+            throw new LibraryException("Item with ID " + id + " is not an e-magazine", false);
+        }
+        long logSequence = 0;
+        Lock stripe = stripeFor(id);
+        stripe.lock();
+        try {
+            ((EMagazine) item).archiveIssue();
+            if (log != null) {
+                logSequence = log.appendArchive(id);
+            }
+        } finally {
+            stripe.unlock();
+        }
+        commitLog(logSequence);
+    }
+
+    // Fills an empty catalog from a snapshot without building item objects: slots,
+    // availability, type partitions, columns and fines are bulk-built from the
+    // snapshot sections, items are created on first access, and the text indexes
+    // are built on the first title or author search
+    void loadSnapshot(CatalogSnapshot snapshot) {
+        catalogWriteLock.lock();
+        try {
+            if (items.size() != 0) {
+                throw new IllegalStateException("A snapshot can only be loaded into an empty catalog");
+            }
+            int count = snapshot.size();
+            ensureSlotCapacity(count);
+            BitSet[] partitions = new BitSet[CatalogSnapshot.ITEM_CLASSES.length];
+            short[] typeTags = new short[partitions.length];
+            for (int kind = 1; kind < partitions.length; kind++) {
+                partitions[kind] = partitionFor(CatalogSnapshot.ITEM_CLASSES[kind]);
+                typeTags[kind] = (short) itemTypes.indexOf(CatalogSnapshot.ITEM_CLASSES[kind]);
+            }
+
+            int[] ids = snapshot.ids();
+            byte[] kinds = snapshot.kinds();
+            byte[] flags = snapshot.flags();
+            long[] attributes = snapshot.attributes();
+            int[] dueDays = snapshot.dueDays();
+            long[] availableWords = new long[(count + 63) >>> 6];
+            for (int slot = 0; slot < count; slot++) {
+                int kind = kinds[slot];
+                if ((flags[slot] & CatalogSnapshot.AVAILABLE_FLAG) != 0) {
+                    availableWords[slot >>> 6] |= 1L << slot;
+                    dueDays[slot] = LibraryItem.NO_DUE_DATE;
+                } else {
+                    dueDates.add(slot, dueDays[slot]);
+                }
+                partitions[kind].set(slot);
+                long attribute = attributes[slot];
+                columns.setRow(slot, ids[slot], typeTags[kind], LibraryItem.NO_DUE_DATE,
+                        kind == CirculationLog.BOOK ? (int) attribute : 0,
+                        kind == CirculationLog.AUDIOBOOK ? Double.longBitsToDouble(attribute) : 0.0,
+                        kind == CirculationLog.EMAGAZINE ? (int) attribute : 0);
+            }
+            columns.setDueDays(dueDays);
+            available.setWords(availableWords);
+            snapshot.forEachFine(fines::recordMinorUnits);
+            this.snapshot = snapshot;
+            restoredLogSequence = snapshot.logSequence();
+            textIndexed = false;
+            searchCache.clear();
+            items.loadUnloaded(ids, slot -> {
+                LibraryItem item = snapshot.materialize(slot);
+                item.setOwner(this);
+                return item;
+            });
+            if (scheduler != null) {
+                scheduleLoans(scheduler);
+            }
+        } finally {
+            catalogWriteLock.unlock();
+        }
+    }
+
+    // Passes every slot to the snapshot writer under the catalog read lock.
+    // Items still backed by the loaded snapshot are handed over as null.
+    void forEachSnapshotRow(CatalogSnapshot.RowWriter writer) throws IOException {
+        catalogReadLock.lock();
+        try {
+            int slots = items.size();
+            writer.begin(slots);
+            for (int slot = 0; slot < slots; slot++) {
+                writer.write(slot, items.peek(slot), snapshot);
+            }
+        } finally {
+            catalogReadLock.unlock();
+        }
+    }
+
+    void forEachFine(FinesLedger.EventConsumer consumer) {
+        fines.forEachEvent(consumer);
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    // Records every later catalog change in log; replay the log into this
+    // LibraNet with CirculationLog.replay before attaching it
+    public void attachLog(CirculationLog log) {
+        log.start(restoredLogSequence);
+        this.log = log;
+    }
+
+    long restoredLogSequence() {
+        return restoredLogSequence;
+    }
+
+    void restoreLogSequence(long sequence) {
+        restoredLogSequence = Math.max(restoredLogSequence, sequence);
+    }
+
+    // Sequence of the last logged change, for the snapshot header
+    long logSequence() {
+        CirculationLog current = log;
+        return current != null ? current.lastSequence() : restoredLogSequence;
+    }
+
+    // Feeds every current and later loan to scheduler, which then fires their
+    // reminders, overdue notices and fine accrual as its clock advances
+    public void attachScheduler(DueDateScheduler scheduler) {
+        catalogWriteLock.lock();
+        for (Lock stripe : stripes) {
+            stripe.lock();
+        }
+        try {
+            scheduler.ensureCapacity(columns.capacity());
+            scheduleLoans(scheduler);
+            this.scheduler = scheduler;
+        } finally {
+            for (Lock stripe : stripes) {
+                stripe.unlock();
+            }
+            catalogWriteLock.unlock();
+        }
+    }
+
+    // Caller holds the catalog write lock
+    private void scheduleLoans(DueDateScheduler scheduler) {
+        int slots = items.size();
+        for (int slot = available.nextClearBit(0); slot < slots; slot = available.nextClearBit(slot + 1)) {
+            scheduler.schedule(slot, columns.id(slot), columns.dueDay(slot));
+        }
+    }
+
+    private void commitLog(long logSequence) {
+        if (logSequence > 0) {
+            try {
+                log.commit(logSequence);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write circulation log", e);
+            }
+        }
+    }
+
+    private Lock stripeFor(int id) {
+        return stripes[ItemTable.mix(id) & (stripes.length - 1)];
+    }
+
+    private LibraryItem requireItem(int id) throws LibraryException {
+        LibraryItem item = items.get(id);
+        if (item == null) {
+            throw new LibraryException("Item with ID " + id + " not found", false);
+        }
+        return item;
+    }
+
+    private int requireSlot(int id) throws LibraryException {
+        int slot = items.slotOf(id);
+        if (slot < 0) {
+            throw new LibraryException("Item with ID " + id + " not found", false);
+        }
+        return slot;
+    }
+
+    // Caller holds the stripe lock of id
+    private CirculationStatus borrowLocked(int id, int borrowEpochDay) {
+        int slot = items.slotOf(id);
+        if (slot < 0) {
+            return CirculationStatus.NOT_FOUND;
+        }
+        LibraryItem item = items.itemAt(slot);
+        if (!item.tryBorrow(borrowEpochDay)) {
+            return CirculationStatus.NOT_AVAILABLE;
+        }
+        markBorrowed(slot, item);
+        return CirculationStatus.OK;
+    }
+
+    // Caller holds the stripe lock of id. Returns the fine, or a negative code
+    // that returnStatus turns into the failure status.
+    private double returnLocked(int id, int returnEpochDay) {
+        int slot = items.slotOf(id);
+        if (slot < 0) {
+            return ITEM_NOT_FOUND;
+        }
+        double fine = items.itemAt(slot).tryReturn(returnEpochDay);
+        if (fine != LibraryItem.NOT_BORROWED) {
+            markReturned(slot);
+        }
+        return fine;
+    }
+
+    private static CirculationStatus returnStatus(double fine) {
+        return fine >= 0 ? CirculationStatus.OK
+                : fine == ITEM_NOT_FOUND ? CirculationStatus.NOT_FOUND : CirculationStatus.NOT_BORROWED;
+    }
+
+    private void markBorrowed(int slot, LibraryItem item) {
+        available.clear(slot);
+        columns.setDueDay(slot, item.getDueEpochDay());
+        dueDates.add(slot, item.getDueEpochDay());
+        if (scheduler != null) {
+            scheduler.schedule(slot, item.getId(), item.getDueEpochDay());
+        }
+    }
+
+    private void markReturned(int slot) {
+        available.set(slot);
+        dueDates.remove(slot, columns.dueDay(slot));
+        columns.setDueDay(slot, LibraryItem.NO_DUE_DATE);
+        if (scheduler != null) {
+            scheduler.cancel(slot);
+        }
+    }
+
+    // Results are ordered by item ID. Repeated queries are answered from the
+    // search cache until an added item's title contains them.
+    public List<LibraryItem> searchByTitle(String title) {
+        String query = title.toLowerCase();
+        lockTextIndexes();
+        try {
+            int[] cached = searchCache.get(SearchCache.Field.TITLE, query);
+            if (cached != null) {
+                return itemsById(cached);
+            }
+            int[] candidates = titleIndex.candidates(query);
+            List<LibraryItem> results;
+            if (candidates == null) {
+                results = scanById(item -> item.getTitle().toLowerCase().contains(query));
+            } else {
+                results = new ArrayList<>();
+                for (int id : candidates) {
+                    LibraryItem item = items.get(id);
+                    if (item != null && item.getTitle().toLowerCase().contains(query)) {
+                        results.add(item);
+                    }
+                }
+            }
+            if (results.size() <= SearchCache.MAX_RESULT_IDS) {
+                searchCache.put(SearchCache.Field.TITLE, query, idsOf(results));
+            }
+            return results;
+        } finally {
+            catalogReadLock.unlock();
+        }
+    }
+
+    // Results are ordered by item ID, and cached like title searches
+    public List<LibraryItem> searchByAuthor(String author) {
+        String query = author.toLowerCase();
+        lockTextIndexes();
+        try {
+            int[] cached = searchCache.get(SearchCache.Field.AUTHOR, query);
+            if (cached != null) {
+                return itemsById(cached);
+            }
+            int[] candidates = authorIndex.candidates(query);
+            List<LibraryItem> results;
+            if (candidates == null) {
+                results = scanById(item -> true);
+            } else {
+                boolean exact = query.length() < 3;
+                results = new ArrayList<>(candidates.length);
+                for (int id : candidates) {
+                    LibraryItem item = items.get(id);
+                    if (item != null && (exact || item.getAuthor().toLowerCase().contains(query))) {
+                        results.add(item);
+                    }
+                }
+            }
+            if (results.size() <= SearchCache.MAX_RESULT_IDS) {
+                searchCache.put(SearchCache.Field.AUTHOR, query, idsOf(results));
+            }
+            return results;
+        } finally {
+            catalogReadLock.unlock();
+        }
+    }
+
+    // The title matches after cursor, at most limit of them
+    public SearchPage searchByTitle(String title, long cursor, int limit) {
+        return page(matches(SearchCache.Field.TITLE, title, cursor), cursor, limit);
+    }
+
+    public SearchPage searchByAuthor(String author, long cursor, int limit) {
+        return page(matches(SearchCache.Field.AUTHOR, author, cursor), cursor, limit);
+    }
+
+    // Lazy title search in item ID order. The candidate IDs are taken from the
+    // index (or the search cache) up front; each item is looked up and checked
+    // only when reached, without the catalog lock, so items added afterwards are
+    // not seen and a replaced item is matched on its current title.
+    public Iterator<LibraryItem> iterateByTitle(String title) {
+        return matches(SearchCache.Field.TITLE, title, SearchPage.FIRST);
+    }
+
+    public Iterator<LibraryItem> iterateByAuthor(String author) {
+        return matches(SearchCache.Field.AUTHOR, author, SearchPage.FIRST);
+    }
+
+    public Stream<LibraryItem> streamByTitle(String title) {
+        return stream(iterateByTitle(title));
+    }
+
+    public Stream<LibraryItem> streamByAuthor(String author) {
+        return stream(iterateByAuthor(author));
+    }
+
+    private MatchIterator matches(SearchCache.Field field, String text, long cursor) {
+        String query = text.toLowerCase();
+        lockTextIndexes();
+        try {
+            int[] ids = searchCache.get(field, query);
+            if (ids == null) {
+                ids = field == SearchCache.Field.TITLE ? titleIndex.candidates(query) : authorIndex.candidates(query);
+            }
+            if (ids == null) {
+                ids = sortedIds();
+            }
+            return new MatchIterator(ids, positionAfter(ids, cursor), field, query);
+        } finally {
+            catalogReadLock.unlock();
+        }
+    }
+
+    private static SearchPage page(Iterator<LibraryItem> matches, long cursor, int limit) {
+        List<LibraryItem> page = new ArrayList<>(Math.max(Math.min(limit, 64), 0));
+        while (page.size() < limit && matches.hasNext()) {
+            page.add(matches.next());
+        }
+        long nextCursor = page.isEmpty() ? cursor : page.get(page.size() - 1).getId();
+        return new SearchPage(page, nextCursor, matches.hasNext());
+    }
+
+    private static Stream<LibraryItem> stream(Iterator<LibraryItem> matches) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(matches,
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    // Index of the first of the sorted ids above cursor
+    private static int positionAfter(int[] ids, long cursor) {
+        if (cursor < Integer.MIN_VALUE) {
+            return 0;
+        }
+        if (cursor >= Integer.MAX_VALUE) {
+            return ids.length;
+        }
+        int found = Arrays.binarySearch(ids, (int) cursor);
+        return found >= 0 ? found + 1 : -found - 1;
+    }
+
+    // Every item ID in ascending order, for queries the indexes cannot narrow
+    private int[] sortedIds() {
+        int[] ids = new int[items.size()];
+        for (int slot = 0; slot < ids.length; slot++) {
+            ids[slot] = columns.id(slot);
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    // Yields the items of sorted candidate IDs whose title or author contains the
+    // query, looking each one up as the iteration reaches it
+    private final class MatchIterator implements Iterator<LibraryItem> {
+        private final int[] ids;
+        private final SearchCache.Field field;
+        private final String query;
+        private int position;
+        private LibraryItem next;
+
+        MatchIterator(int[] ids, int position, SearchCache.Field field, String query) {
+            this.ids = ids;
+            this.position = position;
+            this.field = field;
+            this.query = query;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && position < ids.length) {
+                LibraryItem item = items.get(ids[position++]);
+                if (item != null && matches(item)) {
+                    next = item;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public LibraryItem next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            LibraryItem item = next;
+            next = null;
+            return item;
+        }
+
+        private boolean matches(LibraryItem item) {
+            String text = field == SearchCache.Field.TITLE ? item.getTitle() : item.getAuthor();
+            return text.toLowerCase().contains(query);
+        }
+    }
+
+    public SearchCache.Stats getSearchCacheStats() {
+        return searchCache.stats();
+    }
+
+    private List<LibraryItem> itemsById(int[] ids) {
+        List<LibraryItem> result = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            result.add(items.get(id));
+        }
+        return result;
+    }
+
+    private static int[] idsOf(List<LibraryItem> results) {
+        int[] ids = new int[results.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = results.get(i).getId();
+        }
+        return ids;
+    }
+
+    // Unions the partitions of every concrete class assignable to type, in insertion order
+    public <T> List<T> searchByType(Class<T> type) {
+        catalogReadLock.lock();
+        try {
+            BitSet slotsOfType = slotsOfType(type);
+            List<T> result = new ArrayList<>(slotsOfType.cardinality());
+            for (int slot = slotsOfType.nextSetBit(0); slot >= 0; slot = slotsOfType.nextSetBit(slot + 1)) {
+                result.add(type.cast(items.itemAt(slot)));
+            }
+            return result;
+        } finally {
+            catalogReadLock.unlock();
+        }
+    }
+
+    // The slots of items assignable to type; a lone partition is returned as is,
+    // so callers must not modify the result
+    private BitSet slotsOfType(Class<?> type) {
+        List<BitSet> partitions = partitionsByQueryType.computeIfAbsent(type, t -> {
+            List<BitSet> matching = new ArrayList<>();
+            typePartitions.forEach((itemClass, partition) -> {
+                if (t.isAssignableFrom(itemClass)) {
+                    matching.add(partition);
+                }
+            });
+            return matching;
+        });
+        if (partitions.size() == 1) {
+            return partitions.get(0);
+        }
+        BitSet union = new BitSet();
+        partitions.forEach(union::or);
+        return union;
+    }
+
+    // Items meeting every condition of query, in insertion order. The planner
+    // estimates how many items each condition matches from the index statistics,
+    // starts from the indexed condition with the fewest, and goes on in order of
+    // the estimates: an index's slots are ANDed in as a bitmap when that is
+    // cheaper than testing the slots left, and the remaining conditions are then
+    // tested slot by slot.
+    public List<LibraryItem> query(CatalogQuery query) {
+        return plan(query).getItems();
+    }
+
+    // Runs query and returns its plan, with estimated and actual row counts
+    public QueryPlan explain(CatalogQuery query) {
+        return plan(query);
+    }
+
+    private QueryPlan plan(CatalogQuery query) {
+        if (query.title != null || query.author != null) {
+            lockTextIndexes();
+        } else {
+            catalogReadLock.lock();
+        }
+        try {
+            int size = items.size();
+            List<Condition> conditions = conditionsOf(query, size);
+            conditions.sort(Comparator.comparingLong(condition -> condition.estimate));
+            // The type and availability bitmaps cost little to AND at any size, so an
+            // index listing many more slots than they are estimated to leave is passed
+            // over as the driver and tested on those slots instead
+            double bitmapRows = size;
+            boolean hasBitmap = false;
+            for (Condition condition : conditions) {
+                if (condition.access == Condition.Access.BITMAP) {
+                    hasBitmap = true;
+                    bitmapRows *= selectivity(condition, null, size);
+                }
+            }
+            for (int i = 0; i < conditions.size(); i++) {
+                Condition condition = conditions.get(i);
+                if (condition.access == Condition.Access.BITMAP || condition.access == Condition.Access.INDEX
+                        && !(hasBitmap && condition.estimate > INDEX_PROBE_RATIO * bitmapRows)) {
+                    conditions.add(0, conditions.remove(i));
+                    break;
+                }
+            }
+
+            QueryPlan plan = new QueryPlan(size);
+            BitSet slots = null;
+            Class<?> narrowedTo = null;
+            double estimatedRows = size;
+            List<Condition> filters = new ArrayList<>();
+            for (Condition condition : conditions) {
+                if (condition.access == Condition.Access.SCAN) {
+                    filters.add(condition);
+                    continue;
+                }
+                String operation;
+                if (slots == null) {
+                    slots = condition.slots.get();
+                    operation = "index";
+                } else if (condition.access == Condition.Access.BITMAP
+                        || condition.estimate <= (long) INDEX_PROBE_RATIO * slots.cardinality()) {
+                    slots.and(condition.slots.get());
+                    operation = "and";
+                } else {
+                    filters.add(condition);
+                    continue;
+                }
+                estimatedRows *= selectivity(condition, narrowedTo, size);
+                if (condition.itemClass != null) {
+                    narrowedTo = condition.itemClass;
+                }
+                plan.addStep(operation, condition.description, condition.estimate,
+                        Math.round(estimatedRows), slots.cardinality());
+                if (!condition.exact) {
+                    condition.applied = true;
+                    filters.add(condition);
+                }
+            }
+            if (slots == null) {
+                slots = new BitSet(size);
+                slots.set(0, size);
+                plan.addStep("scan", "all items", size, size, size);
+            }
+
+            filters.sort(Comparator.comparingLong(filter -> filter.estimate));
+            int[] passed = new int[filters.size()];
+            List<LibraryItem> result = new ArrayList<>();
+            for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+                int f = 0;
+                while (f < filters.size() && filters.get(f).test.test(slot)) {
+                    passed[f++]++;
+                }
+                if (f == filters.size()) {
+                    result.add(items.itemAt(slot));
+                }
+            }
+            for (int f = 0; f < filters.size(); f++) {
+                Condition filter = filters.get(f);
+                if (!filter.applied) {
+                    estimatedRows *= selectivity(filter, narrowedTo, size);
+                }
+                plan.addStep(filter.applied ? "verify" : "filter", filter.description, filter.estimate,
+                        Math.round(estimatedRows), passed[f]);
+            }
+            plan.setItems(result);
+            return plan;
+        } finally {
+            catalogReadLock.unlock();
+        }
+    }
+
+    // Fraction of the rows left that condition is estimated to keep. A condition
+    // that only matches one item class keeps a fraction of that class once a type
+    // step has narrowed the rows to it, rather than of the whole catalog.
+    private static double selectivity(Condition condition, Class<?> narrowedTo, int size) {
+        if (condition.itemClass != null && narrowedTo != null && condition.itemClass.isAssignableFrom(narrowedTo)) {
+            return condition.population == 0 ? 0.0 : Math.min(1.0, (double) condition.estimate / condition.population);
+        }
+        return size == 0 ? 0.0 : (double) condition.estimate / size;
+    }
+
+    // One condition of a query as the planner sees it: the items it is estimated
+    // to match, how an index can list its slots, and a test of a single slot.
+    // BITMAP slots are ANDed in word by word at any size, INDEX slots cost time
+    // in proportion to the estimate, and SCAN conditions have no index.
+    private static final class Condition {
+        enum Access {
+            BITMAP, INDEX, SCAN
+        }
+
+        final String description;
+        final Access access;
+        final long estimate;
+        final IntPredicate test;
+        final Supplier<BitSet> slots;
+        // Whether the listed slots all meet the condition, or must also be tested
+        final boolean exact;
+        // The class a type or column condition limits items to, and how many
+        // items of it there are; otherwise null and the catalog size
+        final Class<?> itemClass;
+        final long population;
+        boolean applied;
+
+        Condition(String description, Access access, long estimate, IntPredicate test, Supplier<BitSet> slots,
+                boolean exact, Class<?> itemClass, long population) {
+            this.description = description;
+            this.access = access;
+            this.estimate = estimate;
+            this.test = test;
+            this.slots = slots;
+            this.exact = exact;
+            this.itemClass = itemClass;
+            this.population = population;
+        }
+    }
+
+    // Empty text conditions match every item and are left out
+    private List<Condition> conditionsOf(CatalogQuery query, int size) {
+        List<Condition> conditions = new ArrayList<>();
+        if (query.title != null && !query.title.isEmpty()) {
+            String text = query.title.toLowerCase();
+            long estimate = titleIndex.estimate(text);
+            IntPredicate test = slot -> items.itemAt(slot).getTitle().toLowerCase().contains(text);
+            conditions.add(new Condition("title contains \"" + query.title + "\"",
+                    estimate < 0 ? Condition.Access.SCAN : Condition.Access.INDEX,
+                    estimate < 0 ? size : Math.min(estimate, size), test,
+                    () -> slotsOfIds(titleIndex.candidates(text)), false, null, size));
+        }
+        if (query.author != null && !query.author.isEmpty()) {
+            String text = query.author.toLowerCase();
+            long estimate = authorIndex.estimate(text);
+            IntPredicate test = slot -> items.itemAt(slot).getAuthor().toLowerCase().contains(text);
+            conditions.add(new Condition("author contains \"" + query.author + "\"",
+                    estimate < 0 ? Condition.Access.SCAN : Condition.Access.INDEX,
+                    estimate < 0 ? size : estimate, test,
+                    () -> slotsOfIds(authorIndex.candidates(text)), text.length() < 3, null, size));
+        }
+        if (query.type != null) {
+            BitSet ofType = slotsOfType(query.type);
+            conditions.add(new Condition("type " + query.type.getSimpleName(), Condition.Access.BITMAP,
+                    ofType.cardinality(), ofType::get, () -> (BitSet) ofType.clone(), true, query.type, size));
+        }
+        if (query.available != null) {
+            boolean wanted = query.available;
+            int availableCount = available.cardinality();
+            conditions.add(new Condition(wanted ? "available" : "borrowed", Condition.Access.BITMAP,
+                    wanted ? availableCount : size - availableCount, slot -> available.get(slot) == wanted, () -> {
+                        BitSet bits = available.toBitSet(size);
+                        if (!wanted) {
+                            bits.flip(0, size);
+                        }
+                        return bits;
+                    }, true, null, size));
+        }
+        if (query.hasDueRange) {
+            long from = query.dueFromDay;
+            long to = query.dueToDay;
+            conditions.add(new Condition("due " + LocalDate.ofEpochDay(from) + ".." + LocalDate.ofEpochDay(to),
+                    Condition.Access.INDEX, dueDates.countDueBetween(from, to), slot -> {
+                        int day = columns.dueDay(slot);
+                        return day != LibraryItem.NO_DUE_DATE && day >= from && day <= to;
+                    }, () -> {
+                        IntList due = dueDates.slotsDueBetween(from, to);
+                        BitSet bits = new BitSet(size);
+                        for (int i = 0; i < due.size(); i++) {
+                            bits.set(due.get(i));
+                        }
+                        return bits;
+                    }, true, null, size));
+        }
+        if (query.hasPageRange) {
+            int min = query.minPages;
+            int max = query.maxPages;
+            conditions.add(columnCondition("pages " + min + ".." + max, Book.class, size,
+                    slot -> columns.pageCount(slot) >= min && columns.pageCount(slot) <= max));
+        }
+        if (query.hasDurationRange) {
+            double min = query.minDuration;
+            double max = query.maxDuration;
+            conditions.add(columnCondition("duration " + min + ".." + max + " hours", Audiobook.class, size,
+                    slot -> columns.duration(slot) >= min && columns.duration(slot) <= max));
+        }
+        if (query.hasIssueRange) {
+            int min = query.minIssue;
+            int max = query.maxIssue;
+            conditions.add(columnCondition("issue " + min + ".." + max, EMagazine.class, size,
+                    slot -> columns.issueNumber(slot) >= min && columns.issueNumber(slot) <= max));
+        }
+        return conditions;
+    }
+
+    // A range over a column that only items of itemClass fill in. Columns have no
+    // index, so the estimate comes from testing evenly spaced sample slots.
+    private Condition columnCondition(String description, Class<?> itemClass, int size, IntPredicate inRange) {
+        boolean[] tagMatches = new boolean[itemTypes.size()];
+        for (int tag = 0; tag < tagMatches.length; tag++) {
+            tagMatches[tag] = itemClass.isAssignableFrom(itemTypes.get(tag));
+        }
+        IntPredicate test = slot -> tagMatches[columns.typeTag(slot)] && inRange.test(slot);
+        long estimate = 0;
+        if (size > 0) {
+            int step = Math.max(1, size / ESTIMATE_SAMPLES);
+            int sampled = 0;
+            int matched = 0;
+            for (int slot = 0; slot < size; slot += step) {
+                sampled++;
+                matched += test.test(slot) ? 1 : 0;
+            }
+            estimate = Math.round((double) matched * size / sampled);
+        }
+        return new Condition(description, Condition.Access.SCAN, estimate, test, null, true, itemClass,
+                slotsOfType(itemClass).cardinality());
+    }
+
+    private BitSet slotsOfIds(int[] ids) {
+        BitSet bits = new BitSet(items.size());
+        for (int id : ids) {
+            int slot = items.slotOf(id);
+            if (slot >= 0) {
+                bits.set(slot);
+            }
+        }
+        return bits;
+    }
+
+    // Takes the catalog read lock with the text indexes built. A large addItems
+    // may drop them between the build and the lock, so they are checked again
+    // under the lock and rebuilt until they are there.
+    private void lockTextIndexes() {
+        while (true) {
+            ensureTextIndexes();
+            catalogReadLock.lock();
+            if (textIndexed) {
+                return;
+            }
+            catalogReadLock.unlock();
+        }
+    }
+
+    // Builds the title and author indexes skipped by a snapshot load, reading the
+    // text of items that are not loaded yet straight from the snapshot
+    private void ensureTextIndexes() {
+        if (textIndexed) {
+            return;
+        }
+        catalogWriteLock.lock();
+        try {
+            if (!textIndexed) {
+                for (int slot = 0; slot < items.size(); slot++) {
+                    LibraryItem item = items.peek(slot);
+                    if (item != null) {
+                        titleIndex.add(item);
+                        authorIndex.add(item);
+                    } else {
+                        titleIndex.add(columns.id(slot), snapshot.title(slot));
+                        authorIndex.add(columns.id(slot), snapshot.author(slot));
+                    }
+                }
+                sortTextIndexes();
+                textIndexed = true;
+            }
+        } finally {
+            catalogWriteLock.unlock();
+        }
+    }
+
+    // Caller holds the catalog write lock
+    private void sortTextIndexes() {
+        titleIndex.sortPending();
+        authorIndex.sortPending();
+    }
+
+    private List<LibraryItem> scanById(Predicate<LibraryItem> filter) {
+        List<LibraryItem> result = new ArrayList<>();
+        for (int slot = 0; slot < items.size(); slot++) {
+            if (filter.test(items.itemAt(slot))) {
+                result.add(items.itemAt(slot));
+            }
+        }
+        result.sort(Comparator.comparingInt(LibraryItem::getId));
+        return result;
+    }
+
+    private BitSet partitionFor(Class<?> itemClass) {
+        BitSet partition = typePartitions.get(itemClass);
+        if (partition == null) {
+            partition = new BitSet();
+            typePartitions.put(itemClass, partition);
+            itemTypes.add(itemClass);
+            partitionsByQueryType.clear();
+        }
+        return partition;
+    }
+
+    public double getTotalFines() {
+        return fines.getTotal();
+    }
+
+    public double getFinesForItem(int id) {
+        return fines.getItemTotal(id);
+    }
+
+    // Every fine charged to the item, oldest first
+    public List<FinesLedger.FineEvent> getFineHistory(int id) {
+        return fines.getHistory(id);
+    }
+
+    // Listings are in insertion order
+    public List<LibraryItem> getAvailableItems() {
+        catalogReadLock.lock();
+        try {
+            List<LibraryItem> result = new ArrayList<>(available.cardinality());
+            for (int slot = available.nextSetBit(0); slot >= 0; slot = available.nextSetBit(slot + 1)) {
+                result.add(items.itemAt(slot));
+            }
+            return result;
+        } finally {
+            catalogReadLock.unlock();
+        }
+    }
+
+    public List<LibraryItem> getBorrowedItems() {
+        catalogReadLock.lock();
+        try {
+            List<LibraryItem> result = new ArrayList<>();
+            int size = items.size();
+            for (int slot = available.nextClearBit(0); slot < size; slot = available.nextClearBit(slot + 1)) {
+                result.add(items.itemAt(slot));
+            }
+            return result;
+        } finally {
+            catalogReadLock.unlock();
+        }
+    }
+
+    // Items due before asOf, ordered by due date; runs in time proportional to
+    // the result through the due-date index
+    public List<LibraryItem> getOverdueItems(LocalDate asOf) {
+        return itemsDueBetween(Long.MIN_VALUE, asOf.toEpochDay() - 1);
+    }
+
+    // Borrowed items due on a day from from to to, both inclusive, ordered by due date
+    public List<LibraryItem> getDueBetween(LocalDate from, LocalDate to) {
+        return itemsDueBetween(from.toEpochDay(), to.toEpochDay());
+    }
+
+    // Fines that would be charged if every overdue item were returned on asOf
+    public double projectedFines(LocalDate asOf) {
+        return dueDates.overdueDays(asOf.toEpochDay()) * LibraryItem.DEFAULT_FINE_RATE;
+    }
+
+    private List<LibraryItem> itemsDueBetween(long fromDay, long toDay) {
+        catalogReadLock.lock();
+        try {
+            IntList slots = dueDates.slotsDueBetween(fromDay, toDay);
+            List<LibraryItem> result = new ArrayList<>(slots.size());
+            for (int i = 0; i < slots.size(); i++) {
+                result.add(items.itemAt(slots.get(i)));
+            }
+            return result;
+        } finally {
+            catalogReadLock.unlock();
+        }
+    }
+
+    public int countAvailable() {
+        catalogReadLock.lock();
+        try {
+            return available.cardinality();
+        } finally {
+            catalogReadLock.unlock();
+        }
+    }
+
+    public int countBorrowed() {
+        catalogReadLock.lock();
+        try {
+            return items.size() - available.cardinality();
+        } finally {
+            catalogReadLock.unlock();
+        }
+    }
+
+    // Helper method to display all items
+    public void displayAllItems() {
+        System.out.println("\n ALL LIBRARY ITEMS ");
+        displayItems(0, Integer.MAX_VALUE);
+    }
+
+    // Prints up to limit items in insertion order, starting with the item at
+    // offset, and returns how many were printed
+    public int displayItems(int offset, int limit) {
+        ItemRenderer renderer = ItemRenderer.toConsole();
+        catalogReadLock.lock();
+        try {
+            int end = (int) Math.min(items.size(), (long) offset + limit);
+            for (int slot = Math.max(offset, 0); slot < end; slot++) {
+                renderer.println(items.itemAt(slot));
+            }
+            renderer.flush();
+            return Math.max(end - Math.max(offset, 0), 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write item listing", e);
+        } finally {
+            catalogReadLock.unlock();
+        }
+    }
+}
+
+// Append-only write-ahead log of catalog changes. Each record is framed as
+// [int payload length][int CRC32 of payload][payload], and the payload starts
+// with a record type byte. Appends only fill an in-memory buffer; commit makes
+// them durable according to the fsync policy. Under PER_OPERATION, callers that
+// commit at the same time share one write and fsync (group commit).
+class CirculationLog implements Closeable {
+    enum FsyncPolicy {
+        PER_OPERATION, // commit returns once the record is on disk
+        BATCHED,       // the commit that completes a batch forces the whole batch
+        INTERVAL       // a background thread forces pending records periodically
+    }
+
+    static final byte ADD_ITEM = 1;
+    static final byte BORROW = 2;
+    static final byte RETURN = 3;
+    static final byte ARCHIVE = 4;
+    // Written when a log is attached; carries its own sequence number so replay
+    // can number the records after it
+    static final byte START = 5;
+
+    // Item kinds in ADD_ITEM records
+    static final byte BOOK = 1;
+    static final byte AUDIOBOOK = 2;
+    static final byte EMAGAZINE = 3;
+
+    private static final int HEADER_BYTES = 8;
+    // Largest payload a record may have; a replayed header asking for more is
+    // taken as corrupt rather than allocated
+    static final int MAX_PAYLOAD_BYTES = 16 << 20;
+
+    private final FileChannel channel;
+    private final FsyncPolicy policy;
+    private final int batchSize;
+    private final Thread intervalFlusher;
+    private final CRC32 crc = new CRC32();
+
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    private int recordStart;
+    private long appendedSequence;
+    private long durableSequence;
+    private boolean flushing;
+    private IOException failure;
+
+    public CirculationLog(Path path, FsyncPolicy policy) throws IOException {
+        this(path, policy, 256, 50);
+    }
+
+    public CirculationLog(Path path, FsyncPolicy policy, int batchSize, long intervalMillis) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.channel.position(channel.size());
+        this.policy = policy;
+        this.batchSize = batchSize;
+        if (policy == FsyncPolicy.INTERVAL) {
+            intervalFlusher = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(intervalMillis);
+                        flush();
+                    }
+                } catch (InterruptedException | IOException e) {
+                    // Stopped by close; a write failure is rethrown to the next committer
+                }
+            }, "circulation-log-flusher");
+            intervalFlusher.setDaemon(true);
+            intervalFlusher.start();
+        } else {
+            intervalFlusher = null;
+        }
+    }
+
+    // Appends return the record's sequence number for commit
+    public long appendAddItem(LibraryItem item) {
+        byte kind = kindOf(item);
+        if (kind == 0) {
+            throw new IllegalArgumentException("Cannot log items of type " + item.getClass().getName());
+        }
+        byte[] title = item.getTitle().getBytes(StandardCharsets.UTF_8);
+        byte[] author = item.getAuthor().getBytes(StandardCharsets.UTF_8);
+
+        synchronized (this) {
+            ByteBuffer record = beginRecord(ADD_ITEM, 26 + title.length + author.length);
+            record.put(kind).putInt(item.getId());
+            record.putInt(title.length).put(title);
+            record.putInt(author.length).put(author);
+            record.put((byte) (item.checkAvailability() ? 1 : 0)).putInt(item.getDueEpochDay());
+            if (kind == BOOK) {
+                record.putLong(((Book) item).getPageCount());
+            } else if (kind == AUDIOBOOK) {
+                record.putDouble(((Audiobook) item).getDuration());
+            } else {
+                EMagazine magazine = (EMagazine) item;
+                record.putLong(((long) magazine.getIssueNumber() << 1) | (magazine.isArchived() ? 1 : 0));
+            }
+            return endRecord();
+        }
+    }
+
+    public synchronized long appendBorrow(int id, int borrowEpochDay) {
+        beginRecord(BORROW, 8).putInt(id).putInt(borrowEpochDay);
+        return endRecord();
+    }
+
+    public synchronized long appendReturn(int id, int returnEpochDay, double fine) {
+        beginRecord(RETURN, 16).putInt(id).putInt(returnEpochDay).putDouble(fine);
+        return endRecord();
+    }
+
+    public synchronized long appendArchive(int id) {
+        beginRecord(ARCHIVE, 4).putInt(id);
+        return endRecord();
+    }
+
+    // Continues numbering after sequence, the last record the catalog already
+    // reflects, and returns the sequence of the START record marking that point
+    synchronized long start(long sequence) {
+        appendedSequence = sequence;
+        durableSequence = sequence;
+        beginRecord(START, 8).putLong(sequence + 1);
+        return endRecord();
+    }
+
+    synchronized long lastSequence() {
+        return appendedSequence;
+    }
+
+    // Kind code of the item's exact class, or 0 when it has none. A subclass has
+    // none either: storing it as its parent would restore it as the parent.
+    static byte kindOf(LibraryItem item) {
+        Class<?> type = item.getClass();
+        if (type == Book.class) {
+            return BOOK;
+        } else if (type == Audiobook.class) {
+            return AUDIOBOOK;
+        } else if (type == EMagazine.class) {
+            return EMAGAZINE;
+        }
+        return 0;
+    }
+
+    // Reserves the frame header and writes the type byte of a new record
+    private ByteBuffer beginRecord(byte type, int bodyBytes) {
+        if (1L + bodyBytes > MAX_PAYLOAD_BYTES) {
+            throw new IllegalArgumentException("Circulation log record of " + (1L + bodyBytes)
+                    + " bytes is over the " + MAX_PAYLOAD_BYTES + " byte limit");
+        }
+        int needed = HEADER_BYTES + 1 + bodyBytes;
+        if (pending.remaining() < needed) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + needed));
+            pending.flip();
+            pending = grown.put(pending);
+        }
+        recordStart = pending.position();
+        pending.position(recordStart + HEADER_BYTES);
+        return pending.put(type);
+    }
+
+    private long endRecord() {
+        int payloadLength = pending.position() - recordStart - HEADER_BYTES;
+        crc.reset();
+        crc.update(pending.array(), recordStart + HEADER_BYTES, payloadLength);
+        pending.putInt(recordStart, payloadLength).putInt(recordStart + 4, (int) crc.getValue());
+        return ++appendedSequence;
+    }
+
+    public void commit(long sequence) throws IOException {
+        switch (policy) {
+            case PER_OPERATION:
+                awaitDurable(sequence);
+                break;
+            case BATCHED:
+                long durable;
+                synchronized (this) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    durable = durableSequence;
+                }
+                if (sequence - durable >= batchSize) {
+                    awaitDurable(sequence);
+                }
+                break;
+            case INTERVAL:
+                synchronized (this) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                }
+                break;
+        }
+    }
+
+    // Forces every record appended so far to disk
+    public void flush() throws IOException {
+        long sequence;
+        synchronized (this) {
+            sequence = appendedSequence;
+        }
+        awaitDurable(sequence);
+    }
+
+    // The first caller to find no write in progress becomes the leader: it takes
+    // everything appended so far, writes and forces it outside the monitor, and
+    // wakes the callers that queued up meanwhile.
+    private void awaitDurable(long sequence) throws IOException {
+        ByteBuffer batch;
+        long batchSequence;
+        synchronized (this) {
+            while (true) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (durableSequence >= sequence) {
+                    return;
+                }
+                if (!flushing) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for circulation log commit");
+                }
+            }
+            flushing = true;
+            batch = pending;
+            batchSequence = appendedSequence;
+            pending = spare;
+            pending.clear();
+            spare = null;
+        }
+
+        IOException error = null;
+        try {
+            batch.flip();
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            error = e;
+        }
+
+        synchronized (this) {
+            flushing = false;
+            batch.clear();
+            spare = batch;
+            if (error == null) {
+                durableSequence = batchSequence;
+            } else {
+                failure = error;
+            }
+            notifyAll();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (intervalFlusher != null) {
+            intervalFlusher.interrupt();
+        }
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Applies every complete record in the log at path to libraNet, which must not
+    // have a log attached yet. A torn or corrupt tail left by a crash is cut off so
+    // new records follow the last good one; that includes a header whose length
+    // runs past the end of the file. Records up to the sequence of a snapshot
+    // loaded into libraNet are already in it and are skipped. Returns the number
+    // of records applied.
+    public static long replay(Path path, LibraNet libraNet) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        long fileSize = Files.size(path);
+        long skipThrough = libraNet.restoredLogSequence();
+        long sequence = 0;
+        long applied = 0;
+        long validBytes = 0;
+        CRC32 checksum = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (true) {
+                int payloadLength;
+                int expectedCrc;
+                byte[] payload;
+                try {
+                    payloadLength = in.readInt();
+                    expectedCrc = in.readInt();
+                    if (payloadLength <= 0 || payloadLength > MAX_PAYLOAD_BYTES
+                            || payloadLength > fileSize - validBytes - HEADER_BYTES) {
+                        break;
+                    }
+                    payload = new byte[payloadLength];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                checksum.reset();
+                checksum.update(payload);
+                if ((int) checksum.getValue() != expectedCrc) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.wrap(payload);
+                if (record.get(0) == START) {
+                    sequence = record.getLong(1);
+                } else if (++sequence > skipThrough) {
+                    apply(record, libraNet);
+                    applied++;
+                }
+                validBytes += HEADER_BYTES + payloadLength;
+            }
+        }
+        libraNet.restoreLogSequence(sequence);
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            if (file.size() > validBytes) {
+                file.truncate(validBytes);
+            }
+        }
+        return applied;
+    }
+
+    private static void apply(ByteBuffer record, LibraNet libraNet) throws IOException {
+        byte type = record.get();
+        try {
+            switch (type) {
+                case ADD_ITEM:
+                    libraNet.addItem(readItem(record));
+                    break;
+                case BORROW:
+                    libraNet.borrowItem(record.getInt(), record.getInt());
+                    break;
+                case RETURN:
+                    libraNet.restoreReturn(record.getInt(), record.getInt(), record.getDouble());
+                    break;
+                case ARCHIVE:
+                    LibraryItem item = libraNet.getItem(record.getInt());
+                    if (!(item instanceof EMagazine)) {
+                        throw new LibraryException("Archive record for an item that is not an e-magazine");
+                    }
+                    ((EMagazine) item).restoreArchived(true);
+                    break;
+                default:
+                    throw new IOException("Unknown circulation log record type " + type);
+            }
+        } catch (LibraryException e) {
+            throw new IOException("Circulation log does not match the catalog: " + e.getMessage(), e);
+        }
+    }
+
+    private static LibraryItem readItem(ByteBuffer record) throws IOException {
+        byte kind = record.get();
+        int id = record.getInt();
+        String title = readString(record);
+        String author = readString(record);
+        boolean available = record.get() != 0;
+        int dueEpochDay = record.getInt();
+        LibraryItem item;
+        switch (kind) {
+            case BOOK:
+                item = new Book(id, title, author, (int) record.getLong());
+                break;
+            case AUDIOBOOK:
+                item = new Audiobook(id, title, author, record.getDouble());
+                break;
+            case EMAGAZINE:
+                long issue = record.getLong();
+                EMagazine magazine = new EMagazine(id, title, author, (int) (issue >> 1));
+                magazine.restoreArchived((issue & 1) != 0);
+                item = magazine;
+                break;
+            default:
+                throw new IOException("Unknown item kind " + kind);
+        }
+        item.restoreState(available, dueEpochDay);
+        return item;
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+// Binary snapshot of a whole catalog: items of every stored type with their
+// availability, due date and archive flag, plus the fine history. After a fixed
+// header the file stores one section per item field (IDs, kinds, flags, due epoch
+// days, kind-specific attributes and text offsets), then the titles and authors,
+// then the fines as (item ID, epoch day, paise) events. It is written through a
+// FileChannel and read back by memory-mapping the sections, so loading bulk-copies
+// primitive columns into LibraNet and item objects are only built from their row
+// on first access.
+class CatalogSnapshot {
+    // Item classes by the kind codes shared with CirculationLog
+    static final Class<?>[] ITEM_CLASSES = {null, Book.class, Audiobook.class, EMagazine.class};
+
+    static final int AVAILABLE_FLAG = 1;
+    static final int ARCHIVED_FLAG = 2;
+
+    private static final int MAGIC = 0x4C4E5331; // "LNS1"
+    // Version 2 stores fine events in paise instead of per-item totals in rupees;
+    // version 3 adds the last circulation log sequence the snapshot includes
+    private static final int VERSION = 3;
+    private static final int HEADER_BYTES = 32;
+    private static final int FINE_BYTES = 16;
+
+    interface RowWriter {
+        void begin(int slots) throws IOException;
+
+        // item is null when the slot is still backed by source and unchanged since it was loaded
+        void write(int slot, LibraryItem item, CatalogSnapshot source) throws IOException;
+    }
+
+    // Byte offsets of each section for a snapshot of size items
+    private static final class Layout {
+        final long ids;
+        final long kinds;
+        final long flags;
+        final long dueDays;
+        final long attributes;
+        final long textOffsets;
+        final long text;
+
+        Layout(int size) {
+            ids = HEADER_BYTES;
+            kinds = ids + 4L * size;
+            flags = kinds + size;
+            dueDays = (flags + size + 7) & ~7L;
+            attributes = dueDays + 4L * size + (size & 1) * 4L;
+            textOffsets = attributes + 8L * size;
+            text = textOffsets + 8L * size;
+        }
+    }
+
+    private final int size;
+    private final long logSequence;
+    private final ByteBuffer ids;
+    private final ByteBuffer kinds;
+    private final ByteBuffer flags;
+    private final ByteBuffer dueDays;
+    private final ByteBuffer attributes;
+    private final ByteBuffer textOffsets;
+    private final ByteBuffer text;
+    private final ByteBuffer fines;
+
+    private CatalogSnapshot(FileChannel channel, int size, long textBytes, int fineCount, long logSequence)
+            throws IOException {
+        Layout layout = new Layout(size);
+        this.size = size;
+        this.logSequence = logSequence;
+        ids = map(channel, layout.ids, 4L * size);
+        kinds = map(channel, layout.kinds, size);
+        flags = map(channel, layout.flags, size);
+        dueDays = map(channel, layout.dueDays, 4L * size);
+        attributes = map(channel, layout.attributes, 8L * size);
+        textOffsets = map(channel, layout.textOffsets, 8L * size);
+        text = map(channel, layout.text, textBytes);
+        fines = map(channel, layout.text + textBytes, (long) FINE_BYTES * fineCount);
+    }
+
+    // Maps the snapshot at path and loads it into libraNet, which must be empty.
+    // Returns the number of items loaded.
+    public static int load(Path path, LibraNet libraNet) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Keep reading until the header is complete or the file ends
+            }
+            if (header.position() < HEADER_BYTES || header.getInt(0) != MAGIC) {
+                throw new IOException(path + " is not a LibraNet snapshot");
+            }
+            int version = header.getInt(4);
+            if (version != VERSION && version != 2) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            int size = header.getInt(8);
+            int fineCount = header.getInt(12);
+            long textBytes = header.getLong(16);
+            long logSequence = version == VERSION ? header.getLong(24) : 0;
+            if (new Layout(size).text + textBytes + (long) FINE_BYTES * fineCount != channel.size()) {
+                throw new IOException("Snapshot " + path + " is truncated or corrupt");
+            }
+            CatalogSnapshot snapshot = new CatalogSnapshot(channel, size, textBytes, fineCount, logSequence);
+            // Check the kinds before loading, since a bad one would fail half way
+            for (int row = 0; row < size; row++) {
+                int kind = snapshot.kind(row);
+                if (kind <= 0 || kind >= ITEM_CLASSES.length) {
+                    throw new IOException("Snapshot " + path + " is corrupt: unknown item kind " + kind
+                            + " in row " + row);
+                }
+            }
+            libraNet.loadSnapshot(snapshot);
+            return size;
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long bytes) throws IOException {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot section of " + bytes + " bytes is larger than one mapping");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Writes the state of libraNet to path, replacing any previous snapshot atomically.
+    // The header records the last circulation log sequence applied, so the catalog
+    // must not change while it is written.
+    public static void write(Path path, LibraNet libraNet) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            SectionWriter writer = new SectionWriter(channel);
+            long logSequence = libraNet.logSequence();
+            libraNet.forEachSnapshotRow(writer);
+            libraNet.forEachFine(writer::appendFine);
+            writer.finish(logSequence);
+            channel.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Buffered output for one section, flushed at the section's own file position
+    private static final class Section {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        long position;
+
+        ByteBuffer reserve(FileChannel channel, int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush(channel);
+            }
+            return buffer;
+        }
+
+        void flush(FileChannel channel) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+    }
+
+    private static final class SectionWriter implements RowWriter {
+        private final FileChannel channel;
+        private final Section ids = new Section();
+        private final Section kinds = new Section();
+        private final Section flags = new Section();
+        private final Section dueDays = new Section();
+        private final Section attributes = new Section();
+        private final Section textOffsets = new Section();
+        // Holds the text section, then the fines that follow it
+        private final Section tail = new Section();
+        private int slots;
+        private long textStart;
+        private long textBytes = -1;
+        private int fineCount;
+        private IOException fineError;
+
+        SectionWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void begin(int slots) {
+            Layout layout = new Layout(slots);
+            this.slots = slots;
+            ids.position = layout.ids;
+            kinds.position = layout.kinds;
+            flags.position = layout.flags;
+            dueDays.position = layout.dueDays;
+            attributes.position = layout.attributes;
+            textOffsets.position = layout.textOffsets;
+            tail.position = layout.text;
+            textStart = layout.text;
+        }
+
+        @Override
+        public void write(int slot, LibraryItem item, CatalogSnapshot source) throws IOException {
+            textOffsets.reserve(channel, 8).putLong(tail.position + tail.buffer.position() - textStart);
+            if (item == null) {
+                ids.reserve(channel, 4).putInt(source.id(slot));
+                kinds.reserve(channel, 1).put((byte) source.kind(slot));
+                flags.reserve(channel, 1).put(source.flags.get(slot));
+                dueDays.reserve(channel, 4).putInt(source.dueEpochDay(slot));
+                attributes.reserve(channel, 8).putLong(source.attribute(slot));
+                int start = (int) source.textOffsets.getLong(8 * slot);
+                int titleLength = source.text.getInt(start);
+                int authorLength = source.text.getInt(start + 4 + titleLength);
+                ByteBuffer record = source.text.duplicate();
+                record.limit(start + 8 + titleLength + authorLength).position(start);
+                appendTail(record);
+                return;
+            }
+
+            byte kind = CirculationLog.kindOf(item);
+            if (kind == 0) {
+                throw new IOException("Snapshots store only Book, Audiobook and EMagazine items, not "
+                        + item.getClass().getName());
+            }
+            long attribute;
+            int itemFlags = item.checkAvailability() ? AVAILABLE_FLAG : 0;
+            if (kind == CirculationLog.BOOK) {
+                attribute = ((Book) item).getPageCount();
+            } else if (kind == CirculationLog.AUDIOBOOK) {
+                attribute = Double.doubleToLongBits(((Audiobook) item).getDuration());
+            } else {
+                EMagazine magazine = (EMagazine) item;
+                attribute = magazine.getIssueNumber();
+                itemFlags |= magazine.isArchived() ? ARCHIVED_FLAG : 0;
+            }
+            ids.reserve(channel, 4).putInt(item.getId());
+            kinds.reserve(channel, 1).put(kind);
+            flags.reserve(channel, 1).put((byte) itemFlags);
+            dueDays.reserve(channel, 4).putInt(item.getDueEpochDay());
+            attributes.reserve(channel, 8).putLong(attribute);
+            appendString(item.getTitle());
+            appendString(item.getAuthor());
+        }
+
+        private void appendString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            tail.reserve(channel, 4).putInt(bytes.length);
+            appendTail(ByteBuffer.wrap(bytes));
+        }
+
+        private void appendTail(ByteBuffer bytes) throws IOException {
+            while (bytes.hasRemaining()) {
+                ByteBuffer buffer = tail.reserve(channel, 1);
+                int chunk = Math.min(bytes.remaining(), buffer.remaining());
+                ByteBuffer slice = bytes.duplicate();
+                slice.limit(slice.position() + chunk);
+                buffer.put(slice);
+                bytes.position(bytes.position() + chunk);
+            }
+        }
+
+        // Called after every row; the first fine closes the text section
+        void appendFine(int id, int epochDay, long minorUnits) {
+            if (textBytes < 0) {
+                textBytes = tail.position + tail.buffer.position() - textStart;
+            }
+            try {
+                tail.reserve(channel, FINE_BYTES).putInt(id).putInt(epochDay).putLong(minorUnits);
+                fineCount++;
+            } catch (IOException e) {
+                fineError = e;
+            }
+        }
+
+        void finish(long logSequence) throws IOException {
+            if (fineError != null) {
+                throw fineError;
+            }
+            if (textBytes < 0) {
+                textBytes = tail.position + tail.buffer.position() - textStart;
+            }
+            for (Section section : new Section[] {ids, kinds, flags, dueDays, attributes, textOffsets, tail}) {
+                section.flush(channel);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(slots).putInt(fineCount).putLong(textBytes)
+                    .putLong(logSequence).clear();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    long logSequence() {
+        return logSequence;
+    }
+
+    // Bulk copies of whole sections, for loading
+    int[] ids() {
+        int[] values = new int[size];
+        ids.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(values);
+        return values;
+    }
+
+    byte[] kinds() {
+        byte[] values = new byte[size];
+        kinds.duplicate().get(values);
+        return values;
+    }
+
+    byte[] flags() {
+        byte[] values = new byte[size];
+        flags.duplicate().get(values);
+        return values;
+    }
+
+    int[] dueDays() {
+        int[] values = new int[size];
+        dueDays.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(values);
+        return values;
+    }
+
+    long[] attributes() {
+        long[] values = new long[size];
+        attributes.duplicate().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(values);
+        return values;
+    }
+
+    int id(int row) {
+        return ids.getInt(4 * row);
+    }
+
+    int kind(int row) {
+        return kinds.get(row);
+    }
+
+    int dueEpochDay(int row) {
+        return dueDays.getInt(4 * row);
+    }
+
+    long attribute(int row) {
+        return attributes.getLong(8 * row);
+    }
+
+    String title(int row) {
+        return readString((int) textOffsets.getLong(8 * row));
+    }
+
+    String author(int row) {
+        int start = (int) textOffsets.getLong(8 * row);
+        return readString(start + 4 + text.getInt(start));
+    }
+
+    private String readString(int position) {
+        byte[] bytes = new byte[text.getInt(position)];
+        text.get(position + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    void forEachFine(FinesLedger.EventConsumer consumer) {
+        for (int position = 0; position < fines.limit(); position += FINE_BYTES) {
+            consumer.accept(fines.getInt(position), fines.getInt(position + 4), fines.getLong(position + 8));
+        }
+    }
+
+    // Builds the item stored in row, with its saved availability and due date
+    LibraryItem materialize(int row) {
+        int id = id(row);
+        String title = title(row);
+        String author = author(row);
+        long attribute = attribute(row);
+        int rowFlags = flags.get(row);
+        LibraryItem item;
+        switch (kind(row)) {
+            case CirculationLog.BOOK:
+                item = new Book(id, title, author, (int) attribute);
+                break;
+            case CirculationLog.AUDIOBOOK:
+                item = new Audiobook(id, title, author, Double.longBitsToDouble(attribute));
+                break;
+            case CirculationLog.EMAGAZINE:
+                EMagazine magazine = new EMagazine(id, title, author, (int) attribute);
+                magazine.restoreArchived((rowFlags & ARCHIVED_FLAG) != 0);
+                item = magazine;
+                break;
+            default:
+                throw new IllegalStateException("Unknown item kind " + kind(row) + " in snapshot row " + row);
+        }
+        item.restoreState((rowFlags & AVAILABLE_FLAG) != 0, dueEpochDay(row));
+        return item;
+    }
+}
+
+// Streaming bulk import of books, audiobooks and e-magazines from CSV or JSON
+// Lines. The input is read in chunks of whole lines; a pool of threads parses
+// each chunk straight from its bytes, and the items are added to LibraNet in
+// input order, one addItems batch per chunk. Only a few chunks are in flight at
+// once, so memory use does not grow with the input. A bad line is passed to the
+// error handler and skipped.
+//
+//   CSV:        type,id,title,author,attribute    (optional header, RFC 4180 quoting)
+//   JSON Lines: {"type":"book","id":1,"title":"...","author":"...","pages":180}
+//
+// Records are split at line breaks before they are parsed, so a quoted CSV field
+// cannot contain one; a quote still open at the end of its line is an error.
+// type is book, audiobook or emagazine. The attribute is the page count of a book,
+// the duration in hours of an audiobook and the issue number of an e-magazine;
+// in JSON Lines these are the "pages", "duration" and "issue" fields.
+class CatalogImporter {
+    enum Format {
+        CSV, JSON_LINES;
+
+        // Picks the format from a file name: .jsonl, .ndjson and .json are JSON Lines
+        static Format of(Path path) {
+            String name = path.getFileName().toString().toLowerCase();
+            return name.endsWith(".jsonl") || name.endsWith(".ndjson") || name.endsWith(".json")
+                    ? JSON_LINES : CSV;
+        }
+    }
+
+    interface ErrorHandler {
+        void onError(long line, String message);
+    }
+
+    static final class Result {
+        private final long lines;
+        private final long imported;
+        private final long errors;
+        private final long nanos;
+
+        Result(long lines, long imported, long errors, long nanos) {
+            this.lines = lines;
+            this.imported = imported;
+            this.errors = errors;
+            this.nanos = nanos;
+        }
+
+        public long getLines() {
+            return lines;
+        }
+
+        public long getImported() {
+            return imported;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Imported %d items from %d lines (%d errors) in %d ms, %.0f records/s",
+                    imported, lines, errors, nanos / 1_000_000, lines * 1e9 / Math.max(1, nanos));
+        }
+    }
+
+    private static final int CHUNK_BYTES = 1 << 20;
+    private static final byte[] BOOK = "book".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] AUDIOBOOK = "audiobook".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EMAGAZINE = "emagazine".getBytes(StandardCharsets.US_ASCII);
+
+    private final LibraNet libraNet;
+    private final int threads;
+    private final ErrorHandler errorHandler;
+
+    public CatalogImporter(LibraNet libraNet, ErrorHandler errorHandler) {
+        this(libraNet, Runtime.getRuntime().availableProcessors(), errorHandler);
+    }
+
+    public CatalogImporter(LibraNet libraNet, int threads, ErrorHandler errorHandler) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.libraNet = libraNet;
+        this.threads = threads;
+        this.errorHandler = errorHandler;
+    }
+
+    public Result importFile(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            return importStream(in, Format.of(path));
+        }
+    }
+
+    public Result importStream(InputStream in, Format format) throws IOException {
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "catalog-import");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ArrayDeque<Future<ParsedChunk>> inFlight = new ArrayDeque<>();
+        long[] totals = new long[3]; // lines, imported, errors
+        try {
+            byte[] buffer = new byte[CHUNK_BYTES];
+            int filled = 0;
+            boolean first = true;
+            while (true) {
+                int read = in.read(buffer, filled, buffer.length - filled);
+                if (read < 0) {
+                    if (filled > 0) {
+                        submit(pool, inFlight, totals, buffer, filled, format, first);
+                    }
+                    break;
+                }
+                filled += read;
+                if (filled < buffer.length) {
+                    continue;
+                }
+                int end = filled;
+                while (end > 0 && buffer[end - 1] != '\n') {
+                    end--;
+                }
+                if (end == 0) {
+                    // One line fills the whole buffer
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    continue;
+                }
+                byte[] next = new byte[Math.max(CHUNK_BYTES, 2 * (filled - end))];
+                System.arraycopy(buffer, end, next, 0, filled - end);
+                submit(pool, inFlight, totals, buffer, end, format, first);
+                first = false;
+                buffer = next;
+                filled -= end;
+            }
+            while (!inFlight.isEmpty()) {
+                insert(inFlight.poll(), totals);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return new Result(totals[0], totals[1], totals[2], System.nanoTime() - start);
+    }
+
+    private void submit(ExecutorService pool, ArrayDeque<Future<ParsedChunk>> inFlight, long[] totals,
+                        byte[] bytes, int length, Format format, boolean first) throws IOException {
+        if (inFlight.size() >= 2 * threads) {
+            insert(inFlight.poll(), totals);
+        }
+        inFlight.add(pool.submit(() -> new ParsedChunk(bytes, length, format, first)));
+    }
+
+    private void insert(Future<ParsedChunk> pending, long[] totals) throws IOException {
+        ParsedChunk chunk;
+        try {
+            chunk = pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Import interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Import failed", e.getCause());
+        }
+        try {
+            libraNet.addItems(chunk.items);
+        } catch (LibraryException e) {
+            throw new IOException("Import failed: " + e.getMessage(), e);
+        }
+        for (int i = 0; i < chunk.errorLines.size(); i++) {
+            errorHandler.onError(totals[0] + chunk.errorLines.get(i), chunk.errorMessages.get(i));
+        }
+        totals[0] += chunk.lines;
+        totals[1] += chunk.items.size();
+        totals[2] += chunk.errorLines.size();
+    }
+
+    // The items and errors of one chunk; line numbers are 1-based within the chunk
+    private static final class ParsedChunk {
+        final List<LibraryItem> items = new ArrayList<>();
+        final IntList errorLines = new IntList();
+        final List<String> errorMessages = new ArrayList<>();
+        int lines;
+
+        private final byte[] bytes;
+        private final Format format;
+        private int pos;
+        private int lineEnd;
+        // Bounds of the last field read, and whether it holds escape sequences
+        private int fieldStart;
+        private int fieldEnd;
+        private boolean escaped;
+
+        ParsedChunk(byte[] bytes, int length, Format format, boolean first) {
+            this.bytes = bytes;
+            this.format = format;
+            int lineStart = 0;
+            if (first && length >= 3 && bytes[0] == (byte) 0xEF && bytes[1] == (byte) 0xBB && bytes[2] == (byte) 0xBF) {
+                lineStart = 3;
+            }
+            while (lineStart < length) {
+                int newline = lineStart;
+                while (newline < length && bytes[newline] != '\n') {
+                    newline++;
+                }
+                lines++;
+                pos = lineStart;
+                lineEnd = newline > lineStart && bytes[newline - 1] == '\r' ? newline - 1 : newline;
+                if (pos < lineEnd && !(first && lines == 1 && format == Format.CSV && isCsvHeader())) {
+                    try {
+                        items.add(format == Format.CSV ? parseCsvLine() : parseJsonLine());
+                    } catch (IllegalArgumentException e) {
+                        errorLines.add(lines);
+                        errorMessages.add(e.getMessage());
+                    }
+                }
+                lineStart = newline + 1;
+            }
+        }
+
+        private boolean isCsvHeader() {
+            return lineEnd - pos >= 5 && (bytes[pos] | 0x20) == 't' && (bytes[pos + 1] | 0x20) == 'y'
+                    && (bytes[pos + 2] | 0x20) == 'p' && (bytes[pos + 3] | 0x20) == 'e' && bytes[pos + 4] == ',';
+        }
+
+        private LibraryItem parseCsvLine() {
+            nextCsvField();
+            int kind = kind();
+            nextCsvField();
+            int id = intField("ID");
+            nextCsvField();
+            String title = textField();
+            nextCsvField();
+            String author = textField();
+            nextCsvField();
+            LibraryItem item = build(kind, id, title, author);
+            if (pos <= lineEnd) {
+                throw new IllegalArgumentException("Too many fields");
+            }
+            return item;
+        }
+
+        // Sets the field bounds and moves past the comma; pos passes lineEnd after the last field
+        private void nextCsvField() {
+            if (pos > lineEnd) {
+                throw new IllegalArgumentException("Expected 5 fields: type,id,title,author,attribute");
+            }
+            escaped = false;
+            if (pos < lineEnd && bytes[pos] == '"') {
+                int i = pos + 1;
+                while (true) {
+                    if (i >= lineEnd) {
+                        throw new IllegalArgumentException("Unterminated quoted field");
+                    }
+                    if (bytes[i] == '"') {
+                        if (i + 1 < lineEnd && bytes[i + 1] == '"') {
+                            escaped = true;
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                fieldStart = pos + 1;
+                fieldEnd = i;
+                pos = i + 1;
+                if (pos < lineEnd && bytes[pos] != ',') {
+                    throw new IllegalArgumentException("Unexpected text after quoted field");
+                }
+            } else {
+                int i = pos;
+                while (i < lineEnd && bytes[i] != ',') {
+                    i++;
+                }
+                fieldStart = pos;
+                fieldEnd = i;
+                pos = i;
+            }
+            pos++;
+        }
+
+        private LibraryItem parseJsonLine() {
+            int kind = 0;
+            Integer id = null;
+            String title = null;
+            String author = null;
+            int attributeStart = -1;
+            int attributeEnd = -1;
+            String attributeName = null;
+
+            skipWhitespace();
+            expect('{');
+            skipWhitespace();
+            if (pos < lineEnd && bytes[pos] == '}') {
+                pos++;
+            } else {
+                while (true) {
+                    skipWhitespace();
+                    jsonString();
+                    String key = new String(bytes, fieldStart, fieldEnd - fieldStart, StandardCharsets.UTF_8);
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                    boolean isString = pos < lineEnd && bytes[pos] == '"';
+                    if (isString) {
+                        jsonString();
+                    } else {
+                        jsonLiteral();
+                    }
+                    switch (key) {
+                        case "type":
+                            kind = kind();
+                            break;
+                        case "id":
+                            id = intField("ID");
+                            break;
+                        case "title":
+                            title = isString ? textField() : null;
+                            break;
+                        case "author":
+                            author = isString ? textField() : null;
+                            break;
+                        case "pages":
+                        case "duration":
+                        case "issue":
+                            attributeName = key;
+                            attributeStart = fieldStart;
+                            attributeEnd = fieldEnd;
+                            break;
+                        default:
+                            // Other fields are ignored
+                    }
+                    skipWhitespace();
+                    if (pos < lineEnd && bytes[pos] == ',') {
+                        pos++;
+                        continue;
+                    }
+                    expect('}');
+                    break;
+                }
+            }
+            skipWhitespace();
+            if (pos < lineEnd) {
+                throw new IllegalArgumentException("Unexpected text after the object");
+            }
+            if (kind == 0 || id == null || title == null || author == null) {
+                throw new IllegalArgumentException("Expected string fields type, title and author and a number id");
+            }
+            String expected = kind == CirculationLog.BOOK ? "pages"
+                    : kind == CirculationLog.AUDIOBOOK ? "duration" : "issue";
+            if (!expected.equals(attributeName)) {
+                throw new IllegalArgumentException("Missing \"" + expected + "\" field");
+            }
+            fieldStart = attributeStart;
+            fieldEnd = attributeEnd;
+            return build(kind, id, title, author);
+        }
+
+        // Sets the field bounds to the contents of the string at pos and moves past it
+        private void jsonString() {
+            expect('"');
+            escaped = false;
+            int i = pos;
+            while (i < lineEnd && bytes[i] != '"') {
+                if (bytes[i] == '\\') {
+                    escaped = true;
+                    i++;
+                }
+                i++;
+            }
+            if (i >= lineEnd) {
+                throw new IllegalArgumentException("Unterminated string");
+            }
+            fieldStart = pos;
+            fieldEnd = i;
+            pos = i + 1;
+        }
+
+        // A number, true, false or null
+        private void jsonLiteral() {
+            int i = pos;
+            while (i < lineEnd && bytes[i] != ',' && bytes[i] != '}' && bytes[i] > ' ') {
+                if (bytes[i] == '{' || bytes[i] == '[') {
+                    throw new IllegalArgumentException("Nested values are not supported");
+                }
+                i++;
+            }
+            if (i == pos) {
+                throw new IllegalArgumentException("Missing value");
+            }
+            escaped = false;
+            fieldStart = pos;
+            fieldEnd = i;
+            pos = i;
+        }
+
+        private void skipWhitespace() {
+            while (pos < lineEnd && (bytes[pos] == ' ' || bytes[pos] == '\t')) {
+                pos++;
+            }
+        }
+
+        private void expect(char c) {
+            if (pos >= lineEnd || bytes[pos] != c) {
+                throw new IllegalArgumentException("Expected '" + c + "' at column " + column());
+            }
+            pos++;
+        }
+
+        private int column() {
+            int lineStart = pos;
+            while (lineStart > 0 && bytes[lineStart - 1] != '\n') {
+                lineStart--;
+            }
+            return pos - lineStart + 1;
+        }
+
+        // Builds the item whose attribute is the current field
+        private LibraryItem build(int kind, int id, String title, String author) {
+            switch (kind) {
+                case CirculationLog.BOOK:
+                    return new Book(id, title, author, intField("page count"));
+                case CirculationLog.AUDIOBOOK:
+                    return new Audiobook(id, title, author, doubleField("duration"));
+                default:
+                    return new EMagazine(id, title, author, intField("issue number"));
+            }
+        }
+
+        private int kind() {
+            if (matches(BOOK)) {
+                return CirculationLog.BOOK;
+            } else if (matches(AUDIOBOOK)) {
+                return CirculationLog.AUDIOBOOK;
+            } else if (matches(EMAGAZINE)) {
+                return CirculationLog.EMAGAZINE;
+            }
+            throw new IllegalArgumentException("Unknown item type " + fieldText());
+        }
+
+        // Case-insensitive match of the current field against a lower-case name
+        private boolean matches(byte[] name) {
+            if (fieldEnd - fieldStart != name.length) {
+                return false;
+            }
+            for (int i = 0; i < name.length; i++) {
+                if ((bytes[fieldStart + i] | 0x20) != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int intField(String name) {
+            int i = fieldStart;
+            boolean negative = i < fieldEnd && bytes[i] == '-';
+            if (negative) {
+                i++;
+            }
+            if (i == fieldEnd || fieldEnd - i > 10) {
+                throw new IllegalArgumentException("Invalid " + name + " " + fieldText());
+            }
+            long value = 0;
+            for (; i < fieldEnd; i++) {
+                int digit = bytes[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new IllegalArgumentException("Invalid " + name + " " + fieldText());
+                }
+                value = value * 10 + digit;
+            }
+            value = negative ? -value : value;
+            if (value != (int) value) {
+                throw new IllegalArgumentException("Invalid " + name + " " + fieldText());
+            }
+            return (int) value;
+        }
+
+        private double doubleField(String name) {
+            try {
+                return Double.parseDouble(new String(bytes, fieldStart, fieldEnd - fieldStart, StandardCharsets.ISO_8859_1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid " + name + " " + fieldText());
+            }
+        }
+
+        private String fieldText() {
+            return "'" + new String(bytes, fieldStart, fieldEnd - fieldStart, StandardCharsets.UTF_8) + "'";
+        }
+
+        // Decodes the current field, undoing CSV quote doubling or JSON escapes
+        private String textField() {
+            String raw = new String(bytes, fieldStart, fieldEnd - fieldStart, StandardCharsets.UTF_8);
+            if (!escaped) {
+                return raw;
+            }
+            return format == Format.CSV ? raw.replace("\"\"", "\"") : unescapeJson(raw);
+        }
+
+        private static String unescapeJson(String raw) {
+            StringBuilder text = new StringBuilder(raw.length());
+            for (int i = 0; i < raw.length(); i++) {
+                char c = raw.charAt(i);
+                if (c != '\\') {
+                    text.append(c);
+                    continue;
+                }
+                if (++i == raw.length()) {
+                    throw new IllegalArgumentException("Invalid escape at end of string");
+                }
+                c = raw.charAt(i);
+                int control = "bfnrt".indexOf(c);
+                if (control >= 0) {
+                    text.append("\b\f\n\r\t".charAt(control));
+                } else if (c == 'u') {
+                    if (i + 4 >= raw.length()) {
+                        throw new IllegalArgumentException("Invalid \\u escape");
+                    }
+                    try {
+                        text.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid \\u escape");
+                    }
+                    i += 4;
+                } else {
+                    text.append(c);
+                }
+            }
+            return text.toString();
+        }
+    }
+}
+
+// JSON API over the JDK's built-in HTTP server, for kiosks and other clients.
+// Each exchange runs on its own virtual thread where the JDK has them, and on
+// a cached thread pool otherwise; serve a LibraNet.concurrent() catalog.
+//   GET  /items/{id}                           the item
+//   POST /items/{id}/borrow?date=YYYY-MM-DD    {"status":"OK","dueDate":"..."}
+//   POST /items/{id}/return?date=YYYY-MM-DD    {"status":"OK","fine":0.0}
+//   GET  /items/{id}/fines                     fines collected on the item
+//   GET  /items/available, /items/borrowed     availability lists
+//   GET  /search/title?q=, /search/author?q=   text searches, paged with
+//                                              limit= and cursor= (X-Next-Cursor)
+//   GET  /search/type?type=book|audiobook|emagazine
+//   GET  /fines                                total fines collected
+//   GET  /metrics                              search cache statistics
+// Dates default to today. Lists take an optional limit. Items are written with
+// the fields the JSON Lines importer reads, plus availability and due date.
+// The JDK server reads its tuning from system properties once, when the first
+// server in the JVM is created, so applyJvmDefaults must run before that; the
+// same settings can be given at launch as -Dsun.net.httpserver.nodelay=true and
+// -Dsun.net.httpserver.maxIdleConnections=65536.
+class LibraNetHttpServer implements Closeable {
+    // Pending connections the listening socket holds for the accept loop
+    private static final int BACKLOG = 4096;
+    // Keep-alive connections the server keeps open between requests; past its
+    // default of 200 it closes connections the clients are about to reuse
+    private static final int MAX_IDLE_CONNECTIONS = 65536;
+
+    private final LibraNet libraNet;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public LibraNetHttpServer(LibraNet libraNet, InetSocketAddress address) throws IOException {
+        this.libraNet = libraNet;
+        this.server = HttpServer.create(address, BACKLOG);
+        this.executor = newRequestExecutor();
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+    }
+
+    // Sets the JDK server properties that were not given at launch. The server
+    // writes headers and body separately; without TCP_NODELAY the body waits on
+    // the client's delayed ACK, about 40 ms per keep-alive request.
+    static void applyJvmDefaults() {
+        setDefault("sun.net.httpserver.nodelay", "true");
+        setDefault("sun.net.httpserver.maxIdleConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+    }
+
+    private static void setDefault(String property, String value) {
+        if (System.getProperty(property) == null) {
+            System.setProperty(property, value);
+        }
+    }
+
+    // A virtual thread per request on Java 21 and later, looked up reflectively
+    // so the class still compiles and runs on older JDKs
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    // The bound address, which has the actual port when started on port 0
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
     }
 
-    public boolean isArchived() {
-        return isArchived;
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
     }
 
-    public int getIssueNumber() {
-        return issueNumber;
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String[] path = exchange.getRequestURI().getRawPath().substring(1).split("/");
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String method = exchange.getRequestMethod();
+            if (path[0].equals("items") && path.length >= 2) {
+                if (path.length == 2 && (path[1].equals("available") || path[1].equals("borrowed"))) {
+                    requireMethod(method, "GET");
+                    List<LibraryItem> items = path[1].equals("available")
+                            ? libraNet.getAvailableItems() : libraNet.getBorrowedItems();
+                    send(exchange, 200, writeItems(new StringBuilder(), items, query));
+                    return;
+                }
+                int id = parseId(path[1]);
+                if (path.length == 2) {
+                    requireMethod(method, "GET");
+                    LibraryItem item = libraNet.getItem(id);
+                    if (item == null) {
+                        sendError(exchange, 404, "Item with ID " + id + " not found");
+                    } else {
+                        send(exchange, 200, writeItem(new StringBuilder(), item));
+                    }
+                    return;
+                } else if (path.length == 3) {
+                    switch (path[2]) {
+                        case "borrow":
+                            requireMethod(method, "POST");
+                            borrow(exchange, id, query.getOrDefault("date", LocalDate.now().toString()));
+                            return;
+                        case "return":
+                            requireMethod(method, "POST");
+                            giveBack(exchange, id, query.getOrDefault("date", LocalDate.now().toString()));
+                            return;
+                        case "fines":
+                            requireMethod(method, "GET");
+                            StringBuilder json = new StringBuilder().append("{\"id\":").append(id)
+                                    .append(",\"fines\":");
+                            send(exchange, 200, writeNumber(json, libraNet.getFinesForItem(id)).append('}'));
+                            return;
+                        default:
+                    }
+                }
+            } else if (path[0].equals("search") && path.length == 2) {
+                requireMethod(method, "GET");
+                List<? extends LibraryItem> results;
+                switch (path[1]) {
+                    case "title":
+                    case "author":
+                        if (query.containsKey("limit") || query.containsKey("cursor")) {
+                            sendPage(exchange, path[1].equals("title"), requireParameter(query, "q"), query);
+                            return;
+                        }
+                        results = path[1].equals("title") ? libraNet.searchByTitle(requireParameter(query, "q"))
+                                : libraNet.searchByAuthor(requireParameter(query, "q"));
+                        break;
+                    case "type":
+                        results = libraNet.searchByType(typeOf(requireParameter(query, "type")));
+                        break;
+                    default:
+                        results = null;
+                }
+                if (results != null) {
+                    send(exchange, 200, writeItems(new StringBuilder(), results, query));
+                    return;
+                }
+            } else if (path[0].equals("fines") && path.length == 1) {
+                requireMethod(method, "GET");
+                send(exchange, 200, writeNumber(new StringBuilder("{\"total\":"), libraNet.getTotalFines()).append('}'));
+                return;
+            } else if (path[0].equals("metrics") && path.length == 1) {
+                requireMethod(method, "GET");
+                SearchCache.Stats cache = libraNet.getSearchCacheStats();
+                StringBuilder json = new StringBuilder()
+                        .append("{\"searchCache\":{\"size\":").append(cache.getSize())
+                        .append(",\"capacity\":").append(cache.getCapacity())
+                        .append(",\"hits\":").append(cache.getHits())
+                        .append(",\"misses\":").append(cache.getMisses())
+                        .append(",\"hitRatio\":");
+                writeNumber(json, cache.getHitRatio())
+                        .append(",\"evictions\":").append(cache.getEvictions())
+                        .append(",\"invalidations\":").append(cache.getInvalidations()).append("}}");
+                send(exchange, 200, json);
+                return;
+            }
+            sendError(exchange, 404, "No such resource");
+        } catch (RequestException e) {
+            sendError(exchange, e.status, e.getMessage());
+        } catch (RuntimeException e) {
+            sendError(exchange, 500, String.valueOf(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
     }
 
-    @Override
-    public String toString() {
-        return super.toString() + String.format(", Type: E-Magazine, Issue: %d, Archived: %s",
-                issueNumber, isArchived ? "Yes" : "No");
+    private void borrow(HttpExchange exchange, int id, String date) throws IOException {
+        CirculationStatus status = libraNet.tryBorrowItem(id, date);
+        StringBuilder json = new StringBuilder().append("{\"status\":\"").append(status).append('"');
+        if (status == CirculationStatus.OK) {
+            json.append(",\"dueDate\":\"").append(libraNet.getItem(id).getDueDate()).append('"');
+        }
+        send(exchange, statusCode(status), json.append('}'));
     }
-}
 
-// Library management system
-class LibraNet {
-    private final Map<Integer, LibraryItem> items;
-    private final Map<Integer, Double> fines;
+    private void giveBack(HttpExchange exchange, int id, String date) throws IOException {
+        CirculationResults result = new CirculationResults();
+        CirculationStatus status = libraNet.tryReturnItem(id, date, result);
+        StringBuilder json = new StringBuilder().append("{\"status\":\"").append(status).append('"');
+        if (status == CirculationStatus.OK) {
+            writeNumber(json.append(",\"fine\":"), result.fine(0));
+        }
+        send(exchange, statusCode(status), json.append('}'));
+    }
 
-    public LibraNet() {
-        items = new HashMap<>();
-        fines = new HashMap<>();
+    private static int statusCode(CirculationStatus status) {
+        switch (status) {
+            case OK:
+                return 200;
+            case NOT_FOUND:
+                return 404;
+            case INVALID_DATE:
+                return 400;
+            default:
+                return 409;
+        }
     }
 
-    public void addItem(LibraryItem item) {
-        items.put(item.getId(), item);
+    private static Class<? extends LibraryItem> typeOf(String type) {
+        switch (type.toLowerCase()) {
+            case "book":
+                return Book.class;
+            case "audiobook":
+                return Audiobook.class;
+            case "emagazine":
+            case "e-magazine":
+                return EMagazine.class;
+            default:
+                throw new RequestException(400, "Unknown item type " + type);
+        }
     }
 
-    public LibraryItem getItem(int id) {
-        return items.get(id);
+    private static int parseId(String segment) {
+        try {
+            return Integer.parseInt(segment);
+        } catch (NumberFormatException e) {
+            throw new RequestException(400, "Invalid item ID " + segment);
+        }
     }
 
-    public void borrowItem(int id, String borrowDate) throws LibraryException {
-        LibraryItem item = items.get(id);
-        if (item == null) {
-            throw new LibraryException("Item with ID " + id + " not found");
+    private static void requireMethod(String method, String expected) {
+        if (!method.equals(expected)) {
+            throw new RequestException(405, "Use " + expected);
         }
-        item.borrowItem(borrowDate);
     }
 
-    public double returnItem(int id, String returnDate) throws LibraryException {
-        LibraryItem item = items.get(id);
-        if (item == null) {
-            throw new LibraryException("Item with ID " + id + " not found");
+    private static String requireParameter(Map<String, String> query, String name) {
+        String value = query.get(name);
+        if (value == null) {
+            throw new RequestException(400, "Missing parameter " + name);
         }
+        return value;
+    }
 
-        double fine = item.returnItem(returnDate);
-        if (fine > 0) {
-            fines.put(id, fines.getOrDefault(id, 0.0) + fine);
+    private static Map<String, String> parseQuery(String rawQuery) {
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return Collections.emptyMap();
         }
-        return fine;
+        Map<String, String> query = new HashMap<>();
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            query.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
     }
 
-    public List<LibraryItem> searchByTitle(String title) {
-        return items.values().stream()
-                .filter(item -> item.getTitle().toLowerCase().contains(title.toLowerCase()))
-                .collect(Collectors.toList());
+    // Writes one page of a title or author search; the X-Next-Cursor header holds
+    // the cursor to pass for the following page, and is left out on the last one
+    private void sendPage(HttpExchange exchange, boolean byTitle, String text, Map<String, String> query)
+            throws IOException {
+        int limit = limitOf(query, Integer.MAX_VALUE);
+        long cursor = SearchPage.FIRST;
+        String cursorParameter = query.get("cursor");
+        if (cursorParameter != null) {
+            try {
+                cursor = Long.parseLong(cursorParameter);
+            } catch (NumberFormatException e) {
+                throw new RequestException(400, "Invalid cursor " + cursorParameter);
+            }
+        }
+        SearchPage page = byTitle ? libraNet.searchByTitle(text, cursor, limit)
+                : libraNet.searchByAuthor(text, cursor, limit);
+        if (page.hasMore()) {
+            exchange.getResponseHeaders().set("X-Next-Cursor", Long.toString(page.getNextCursor()));
+        }
+        send(exchange, 200, writeItems(new StringBuilder(), page.getItems(), query));
     }
 
-    public List<LibraryItem> searchByAuthor(String author) {
-        return items.values().stream()
-                .filter(item -> item.getAuthor().toLowerCase().contains(author.toLowerCase()))
-                .collect(Collectors.toList());
+    private static int limitOf(Map<String, String> query, int max) {
+        String limitParameter = query.get("limit");
+        if (limitParameter == null) {
+            return max;
+        }
+        try {
+            return Math.min(max, Math.max(0, Integer.parseInt(limitParameter)));
+        } catch (NumberFormatException e) {
+            throw new RequestException(400, "Invalid limit " + limitParameter);
+        }
     }
 
-    public <T> List<T> searchByType(Class<T> type) {
-        return items.values().stream()
-                .filter(type::isInstance)
-                .map(type::cast)
-                .collect(Collectors.toList());
+    private static StringBuilder writeItems(StringBuilder json, List<? extends LibraryItem> items,
+            Map<String, String> query) {
+        int limit = limitOf(query, items.size());
+        json.append('[');
+        for (int i = 0; i < limit; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            writeItem(json, items.get(i));
+        }
+        return json.append(']');
     }
 
-    public double getTotalFines() {
-        return fines.values().stream().mapToDouble(Double::doubleValue).sum();
+    static StringBuilder writeItem(StringBuilder json, LibraryItem item) {
+        json.append("{\"type\":\"");
+        if (item instanceof Book) {
+            json.append("book");
+        } else if (item instanceof Audiobook) {
+            json.append("audiobook");
+        } else {
+            json.append("emagazine");
+        }
+        json.append("\",\"id\":").append(item.getId()).append(",\"title\":");
+        writeString(json, item.getTitle());
+        json.append(",\"author\":");
+        writeString(json, item.getAuthor());
+        if (item instanceof Book) {
+            json.append(",\"pages\":").append(((Book) item).getPageCount());
+        } else if (item instanceof Audiobook) {
+            writeNumber(json.append(",\"duration\":"), ((Audiobook) item).getDuration());
+        } else if (item instanceof EMagazine) {
+            EMagazine magazine = (EMagazine) item;
+            json.append(",\"issue\":").append(magazine.getIssueNumber())
+                    .append(",\"archived\":").append(magazine.isArchived());
+        }
+        boolean available = item.checkAvailability();
+        json.append(",\"available\":").append(available);
+        if (!available) {
+            json.append(",\"dueDate\":\"").append(item.getDueDate()).append('"');
+        }
+        return json.append('}');
     }
 
-    public double getFinesForItem(int id) {
-        return fines.getOrDefault(id, 0.0);
+    // JSON has no NaN or infinity, so those are written as null
+    private static StringBuilder writeNumber(StringBuilder json, double value) {
+        return Double.isFinite(value) ? json.append(value) : json.append("null");
     }
 
-    public List<LibraryItem> getAvailableItems() {
-        return items.values().stream()
-                .filter(LibraryItem::checkAvailability)
-                .collect(Collectors.toList());
+    private static void writeString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
     }
 
-    public List<LibraryItem> getBorrowedItems() {
-        return items.values().stream()
-                .filter(item -> !item.checkAvailability()) 
-                .collect(Collectors.toList());
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        writeString(json, message);
+        send(exchange, status, json.append('}'));
     }
 
-    // Helper method to display all items
-    public void displayAllItems() {
-        System.out.println("\n ALL LIBRARY ITEMS ");
-        items.values().forEach(System.out::println);
+    private static void send(HttpExchange exchange, int status, CharSequence json) throws IOException {
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    // A request the client got wrong, answered with status and the message
+    private static final class RequestException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        RequestException(int status, String message) {
+            super(message, null, false, false);
+            this.status = status;
+        }
     }
 }
 
 // Example usage with a simple menu system
+// Pass --wal <file> to keep the catalog in a write-ahead log across runs, and
+// --fsync per-op|batched|interval to choose how often it is forced to disk.
+// --snapshot <file> loads the catalog from a snapshot at startup (replaying the
+// log on top of it) and writes a fresh snapshot on exit, which empties the log.
+// --import <file> adds the items of a CSV or JSON Lines file at startup.
+// --http [host:]port also serves the JSON API, on the loopback address unless
+// a host is given; the catalog is then shared with the server threads.
+// --batch <file|-> runs the compact commands of a file, or of standard input,
+// instead of the menu, and prints a throughput summary on standard error.
 class LibraNetSystem { // REMOVED: public modifier
+    // Days before the due date that a reminder is shown
+    private static final int REMINDER_DAYS = 3;
+    // Items shown at a time when listing a large catalog
+    private static final int PAGE_SIZE = 50;
+
+    private static final String USAGE = "Usage: java LibraNetSystem [--wal <file>]"
+            + " [--fsync per-op|batched|interval] [--snapshot <file>] [--import <file>]"
+            + " [--http [host:]port] [--batch <file|->]";
+
     private static LibraNet libraNet = new LibraNet();
     private static Scanner scanner = new Scanner(System.in);
 
-    public static void main(String[] args) {
-        // Pre-populate with some sample items
-        initializeLibrary();
+    public static void main(String[] args) throws IOException, LibraryException {
+        Path walPath = null;
+        Path snapshotPath = null;
+        Path importPath = null;
+        InetSocketAddress httpAddress = null;
+        String batchSource = null;
+        CirculationLog.FsyncPolicy fsyncPolicy = CirculationLog.FsyncPolicy.PER_OPERATION;
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                exitWithUsage("Unexpected argument " + args[i]);
+                return;
+            }
+            if (i + 1 == args.length) {
+                exitWithUsage("Missing value for " + args[i]);
+                return;
+            }
+            String value = args[i + 1];
+            try {
+                switch (args[i]) {
+                    case "--wal":
+                        walPath = Path.of(value);
+                        break;
+                    case "--snapshot":
+                        snapshotPath = Path.of(value);
+                        break;
+                    case "--import":
+                        importPath = Path.of(value);
+                        break;
+                    case "--http":
+                        int colon = value.lastIndexOf(':');
+                        int port = Integer.parseInt(value.substring(colon + 1));
+                        httpAddress = colon < 0 ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                                : new InetSocketAddress(value.substring(0, colon), port);
+                        break;
+                    case "--batch":
+                        batchSource = value;
+                        break;
+                    case "--fsync":
+                        fsyncPolicy = CirculationLog.FsyncPolicy.valueOf(
+                                value.toUpperCase().replace("PER-OP", "PER_OPERATION"));
+                        break;
+                    default:
+                        exitWithUsage("Unknown option " + args[i]);
+                        return;
+                }
+            } catch (IllegalArgumentException e) {
+                // Also covers bad port numbers and paths
+                exitWithUsage("Invalid value for " + args[i] + ": " + value);
+                return;
+            }
+        }
+
+        if (httpAddress != null) {
+            LibraNetHttpServer.applyJvmDefaults();
+            libraNet = LibraNet.concurrent();
+        }
+
+        CirculationLog log = null;
+        long replayed = 0;
+        if (snapshotPath != null && Files.exists(snapshotPath)) {
+            replayed = CatalogSnapshot.load(snapshotPath, libraNet);
+            System.out.println("Loaded " + replayed + " items from " + snapshotPath);
+        }
+        if (walPath != null) {
+            long operations = CirculationLog.replay(walPath, libraNet);
+            replayed += operations;
+            log = new CirculationLog(walPath, fsyncPolicy);
+            libraNet.attachLog(log);
+            System.out.println("Replayed " + operations + " operations from " + walPath);
+        }
+        if (importPath != null) {
+            CatalogImporter importer = new CatalogImporter(libraNet,
+                    (line, message) -> System.out.println("Line " + line + ": " + message));
+            CatalogImporter.Result result = importer.importFile(importPath);
+            replayed += result.getImported();
+            System.out.println(result);
+        }
+        if (replayed == 0) {
+            // Pre-populate with some sample items
+            initializeLibrary();
+        }
+        DueDateScheduler scheduler = null;
+        if (batchSource == null) {
+            scheduler = new DueDateScheduler(LibraryClock.SYSTEM, REMINDER_DAYS, new DueDateListener() {
+                @Override
+                public void dueSoon(int itemId, int dueDay) {
+                    System.out.println("Reminder: item " + itemId + " is due on " + LocalDate.ofEpochDay(dueDay));
+                }
+
+                @Override
+                public void overdue(int itemId, int dueDay) {
+                    System.out.println("Overdue: item " + itemId + " was due on " + LocalDate.ofEpochDay(dueDay));
+                }
+            }, libraNet.isConcurrent());
+            libraNet.attachScheduler(scheduler);
+        }
+        LibraNetHttpServer httpServer = null;
+        if (httpAddress != null) {
+            httpServer = new LibraNetHttpServer(libraNet, httpAddress);
+            httpServer.start();
+            System.out.println("Serving the JSON API on http://" + httpServer.getAddress().getHostString()
+                    + ":" + httpServer.getAddress().getPort());
+        }
+
+        if (batchSource != null) {
+            if (batchSource.equals("-")) {
+                runBatch(System.in);
+            } else {
+                try (InputStream in = Files.newInputStream(Path.of(batchSource))) {
+                    runBatch(in);
+                }
+            }
+        }
 
-        boolean running = true;
+        boolean running = batchSource == null;
         while (running) {
+            scheduler.advance();
             System.out.println("\n LIBRANET LIBRARY MANAGEMENT SYSTEM ");
             System.out.println("1. Display all the items");
             System.out.println("2. Borrow an item");
@@ -287,7 +6027,7 @@ class LibraNetSystem { // REMOVED: public modifier
 
                 switch (choice) {
                     case 1:
-                        libraNet.displayAllItems();
+                        displayAllItems();
                         break;
                     case 2:
                         borrowItem();
@@ -330,9 +6070,155 @@ class LibraNetSystem { // REMOVED: public modifier
             }
         }
         scanner.close();
+        if (httpServer != null) {
+            httpServer.close();
+        }
+        if (snapshotPath != null) {
+            CatalogSnapshot.write(snapshotPath, libraNet);
+        }
+        if (log != null) {
+            log.close();
+            if (snapshotPath != null) {
+                // Everything in the log is now in the snapshot; if this delete is
+                // lost, replay skips the records up to the snapshot's sequence
+                Files.delete(walPath);
+            }
+        }
+    }
+
+    private static void exitWithUsage(String message) {
+        System.err.println(message);
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+
+    // Batch commands, one per line with space-separated fields:
+    //   B <id> <date>  borrow              R <id> <date>  return
+    //   I <id>         show an item        F [<id>]       total fines, or an item's
+    //   T <text>       search by title     A <text>       search by author
+    //   Y <type>       search by type: book, audiobook or emagazine
+    //   V              available items     W              borrowed items
+    // Blank lines and lines starting with # are skipped. Each command prints one
+    // result line, followed by any items it lists; rejected circulation shows the
+    // status instead of an exception. Output is written in large chunks.
+    static void runBatch(InputStream input) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8), 1 << 16);
+        ItemRenderer out = new ItemRenderer(new FileOutputStream(FileDescriptor.out).getChannel(),
+                ItemRenderer.consoleCharset());
+        CirculationResults result = new CirculationResults();
+        long commands = 0;
+        long failed = 0;
+        long lineNumber = 0;
+        long start = System.nanoTime();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            commands++;
+            if (!runBatchCommand(line, out, result)) {
+                failed++;
+                out.println("  at line " + lineNumber);
+            }
+        }
+        out.flush();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("Batch: %d commands, %d failed, %.3f s, %.0f commands/s%n",
+                commands, failed, seconds, commands / Math.max(seconds, 1e-9));
+        System.err.println(libraNet.getSearchCacheStats());
     }
 
-    private static void initializeLibrary() {
+    // Runs one batch command; returns false if it was rejected or malformed
+    private static boolean runBatchCommand(String line, ItemRenderer out, CirculationResults result)
+            throws IOException {
+        char command = line.charAt(0);
+        String argument = line.length() > 1 ? line.substring(1).trim() : "";
+        try {
+            switch (command) {
+                case 'B': {
+                    int space = argument.indexOf(' ');
+                    int id = Integer.parseInt(space < 0 ? argument : argument.substring(0, space));
+                    String date = space < 0 ? LocalDate.now().toString() : argument.substring(space + 1).trim();
+                    CirculationStatus status = libraNet.tryBorrowItem(id, date);
+                    if (status == CirculationStatus.OK) {
+                        out.println("OK " + id + " due " + libraNet.getItem(id).getDueDate());
+                        return true;
+                    }
+                    out.println(status + " " + id);
+                    return false;
+                }
+                case 'R': {
+                    int space = argument.indexOf(' ');
+                    int id = Integer.parseInt(space < 0 ? argument : argument.substring(0, space));
+                    String date = space < 0 ? LocalDate.now().toString() : argument.substring(space + 1).trim();
+                    CirculationStatus status = libraNet.tryReturnItem(id, date, result);
+                    if (status == CirculationStatus.OK) {
+                        out.println("OK " + id + " fine " + result.fine(0));
+                        return true;
+                    }
+                    out.println(status + " " + id);
+                    return false;
+                }
+                case 'I': {
+                    LibraryItem item = libraNet.getItem(Integer.parseInt(argument));
+                    if (item == null) {
+                        out.println(CirculationStatus.NOT_FOUND + " " + argument);
+                        return false;
+                    }
+                    out.println(item);
+                    return true;
+                }
+                case 'F':
+                    out.println("Fines " + (argument.isEmpty()
+                            ? libraNet.getTotalFines() : libraNet.getFinesForItem(Integer.parseInt(argument))));
+                    return true;
+                case 'T':
+                    printBatchItems(out, libraNet.searchByTitle(argument));
+                    return true;
+                case 'A':
+                    printBatchItems(out, libraNet.searchByAuthor(argument));
+                    return true;
+                case 'Y':
+                    switch (argument.toLowerCase()) {
+                        case "book":
+                            printBatchItems(out, libraNet.searchByType(Book.class));
+                            return true;
+                        case "audiobook":
+                            printBatchItems(out, libraNet.searchByType(Audiobook.class));
+                            return true;
+                        case "emagazine":
+                            printBatchItems(out, libraNet.searchByType(EMagazine.class));
+                            return true;
+                        default:
+                            out.println("ERROR unknown item type " + argument);
+                            return false;
+                    }
+                case 'V':
+                    printBatchItems(out, libraNet.getAvailableItems());
+                    return true;
+                case 'W':
+                    printBatchItems(out, libraNet.getBorrowedItems());
+                    return true;
+                default:
+                    out.println("ERROR unknown command " + line);
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            out.println("ERROR invalid number in " + line);
+            return false;
+        }
+    }
+
+    private static void printBatchItems(ItemRenderer out, List<? extends LibraryItem> items) throws IOException {
+        out.println(items.size() + " items");
+        for (LibraryItem item : items) {
+            out.println(item);
+        }
+    }
+
+    private static void initializeLibrary() throws LibraryException {
         // Adding sample items to the library
         libraNet.addItem(new Book(1, "The Great Gatsby", "F. Scott Fitzgerald", 180));
         libraNet.addItem(new Book(2, "To Kill a Mockingbird", "Harper Lee", 281));
@@ -387,12 +6273,12 @@ class LibraNetSystem { // REMOVED: public modifier
         System.out.print("Enter title to search: ");
         String title = scanner.nextLine();
 
-        List<LibraryItem> results = libraNet.searchByTitle(title);
-        if (results.isEmpty()) {
+        SearchPage results = libraNet.searchByTitle(title, SearchPage.FIRST, PAGE_SIZE);
+        if (results.getItems().isEmpty()) {
             System.out.println("No items found with that title.");
         } else {
             System.out.println("Search results:");
-            results.forEach(System.out::println);
+            printPages(results, cursor -> libraNet.searchByTitle(title, cursor, PAGE_SIZE));
         }
     }
 
@@ -400,12 +6286,30 @@ class LibraNetSystem { // REMOVED: public modifier
         System.out.print("Enter author to search: ");
         String author = scanner.nextLine();
 
-        List<LibraryItem> results = libraNet.searchByAuthor(author);
-        if (results.isEmpty()) {
+        SearchPage results = libraNet.searchByAuthor(author, SearchPage.FIRST, PAGE_SIZE);
+        if (results.getItems().isEmpty()) {
             System.out.println("No items found by that author.");
         } else {
             System.out.println("Search results:");
-            results.forEach(System.out::println);
+            printPages(results, cursor -> libraNet.searchByAuthor(author, cursor, PAGE_SIZE));
+        }
+    }
+
+    // Prints a search a page at a time, fetching the next page only when asked for
+    private static void printPages(SearchPage first, LongFunction<SearchPage> nextPage) {
+        SearchPage page = first;
+        int shown = 0;
+        while (true) {
+            printItems(page.getItems());
+            shown += page.getItems().size();
+            if (!page.hasMore()) {
+                return;
+            }
+            System.out.print("Shown " + shown + ". Press Enter for more, or q to stop: ");
+            if (scanner.nextLine().trim().equalsIgnoreCase("q")) {
+                return;
+            }
+            page = nextPage.apply(page.getNextCursor());
         }
     }
 
@@ -419,7 +6323,7 @@ class LibraNetSystem { // REMOVED: public modifier
         try {
             int choice = Integer.parseInt(scanner.nextLine());
 
-            List<?> results;
+            List<? extends LibraryItem> results;
             switch (choice) {
                 case 1:
                     results = libraNet.searchByType(Book.class);
@@ -439,7 +6343,7 @@ class LibraNetSystem { // REMOVED: public modifier
                 System.out.println("No items of this type found.");
             } else {
                 System.out.println("Search results:");
-                results.forEach(System.out::println);
+                printItems(results);
             }
         } catch (NumberFormatException e) {
             System.out.println("Please enter a valid number.");
@@ -452,7 +6356,7 @@ class LibraNetSystem { // REMOVED: public modifier
             System.out.println("No available items at the moment.");
         } else {
             System.out.println("Available items:");
-            available.forEach(System.out::println);
+            printItems(available);
         }
     }
 
@@ -462,7 +6366,39 @@ class LibraNetSystem { // REMOVED: public modifier
             System.out.println("No borrowed items at the moment.");
         } else {
             System.out.println("Borrowed items:");
-            borrowed.forEach(System.out::println);
+            printItems(borrowed);
+        }
+    }
+
+    // Shows the catalog a page at a time once it is longer than a page
+    private static void displayAllItems() {
+        if (libraNet.size() <= PAGE_SIZE) {
+            libraNet.displayAllItems();
+            return;
+        }
+        System.out.println("\n ALL LIBRARY ITEMS ");
+        int offset = 0;
+        while (true) {
+            offset += libraNet.displayItems(offset, PAGE_SIZE);
+            if (offset >= libraNet.size()) {
+                return;
+            }
+            System.out.print("Shown " + offset + " of " + libraNet.size() + ". Press Enter for more, or q to stop: ");
+            if (scanner.nextLine().trim().equalsIgnoreCase("q")) {
+                return;
+            }
+        }
+    }
+
+    private static void printItems(List<? extends LibraryItem> items) {
+        ItemRenderer renderer = ItemRenderer.toConsole();
+        try {
+            for (LibraryItem item : items) {
+                renderer.println(item);
+            }
+            renderer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write item listing", e);
         }
     }
 
@@ -511,8 +6447,7 @@ class LibraNetSystem { // REMOVED: public modifier
                     int magId = Integer.parseInt(scanner.nextLine());
                     LibraryItem magItem = libraNet.getItem(magId);
                     if (magItem instanceof EMagazine) {
-                        EMagazine magazine = (EMagazine) magItem;
-                        magazine.archiveIssue();
+                        libraNet.archiveIssue(magId);
                     } else {
                         System.out.println("This item is not an e-magazine.");
                     }
@@ -527,4 +6462,565 @@ class LibraNetSystem { // REMOVED: public modifier
             System.out.println("Error: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
+
+// Benchmark harness for the LibraNet hot paths, run from one command:
+//   javac -d out libranet.java && java -Xmx8g -cp out LibraNetBenchmark [sizes] [name regex]
+// sizes is a comma-separated list of catalog sizes (default 1000,100000,10000000).
+// Each benchmark reports throughput, average time and allocation per operation,
+// measured with the JVM's per-thread allocation counters.
+//   java -cp out LibraNetBenchmark --stress [threads] [operations per thread]
+// instead runs concurrent circulation on a shared catalog and fails if an item
+// was lent twice or a fine went missing.
+class LibraNetBenchmark {
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int MEASURED_ITERATIONS = 3;
+    private static final long ITERATION_NANOS = 1_000_000_000L;
+    private static final int BORROW_DAY = (int) LocalDate.of(2026, 1, 1).toEpochDay();
+
+    private static final String[] TITLE_WORDS = {"The", "Great", "Silent", "River", "Atomic", "Habits",
+            "History", "Ocean", "Garden", "Code", "Night", "Empire", "Light", "Stone", "Winter", "Alchemist"};
+    private static final String[] FIRST_NAMES = {"James", "Harper", "Paulo", "Scott", "Maya", "Ravi",
+            "Elena", "Omar", "Grace", "Kenji", "Aisha", "Lucas"};
+    private static final String[] LAST_NAMES = {"Clear", "Lee", "Coelho", "Fitzgerald", "Angelou", "Kumar",
+            "Ferrante", "Haddad", "Hopper", "Tanaka", "Bello", "Moreau"};
+
+    // Results are folded into this field so the JIT cannot drop benchmarked work
+    static volatile long sink;
+
+    interface Operation {
+        long run(int iteration) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LibraNetHttpServer.applyJvmDefaults();
+        if (args.length > 0 && args[0].equals("--stress")) {
+            stress(args.length > 1 ? Integer.parseInt(args[1]) : Math.max(8, 4 * Runtime.getRuntime().availableProcessors()),
+                    args.length > 2 ? Integer.parseInt(args[2]) : 200_000);
+            return;
+        }
+        int[] sizes = args.length > 0
+                ? Arrays.stream(args[0].split(",")).mapToInt(Integer::parseInt).toArray()
+                : new int[] {1_000, 100_000, 10_000_000};
+        String filter = args.length > 1 ? args[1] : ".*";
+
+        System.out.printf("%-40s %10s %14s %14s %12s%n", "Benchmark", "Items", "ops/s", "ns/op", "B/op");
+        for (int size : sizes) {
+            LibraNet libraNet = buildCatalog(size);
+            Random random = new Random(42);
+            int[] ids = random.ints(1 << 16, 0, size).toArray();
+            int mask = ids.length - 1;
+            // Circulation runs return on the due date: every fine is kept in the
+            // ledger's history, so late returns here would grow it without bound
+            int returnDay = BORROW_DAY + LibraryItem.LOAN_PERIOD_DAYS;
+
+            run("borrowItem+returnItem", size, filter, i -> {
+                int id = ids[i & mask];
+                LibraryItem item = libraNet.getItem(id);
+                if (!item.checkAvailability()) {
+                    return 0;
+                }
+                libraNet.borrowItem(id, BORROW_DAY);
+                return (long) libraNet.returnItem(id, returnDay);
+            });
+            CirculationResults results = new CirculationResults();
+            int[] stack = new int[16];
+            LocalDate borrowDate = LocalDate.ofEpochDay(BORROW_DAY);
+            LocalDate returnDate = LocalDate.ofEpochDay(returnDay);
+            run("borrowItems+returnItems(16)", size, filter, i -> {
+                for (int k = 0; k < stack.length; k++) {
+                    stack[k] = ids[(i * stack.length + k) & mask];
+                }
+                libraNet.borrowItems(stack, borrowDate, results);
+                libraNet.returnItems(stack, returnDate, results);
+                return results.successCount();
+            });
+            // Every third item is on loan, so these borrows are all rejected
+            int borrowed = Math.max(1, size / 3);
+            run("rejectBorrow(exception)", size, filter, i -> {
+                try {
+                    libraNet.borrowItem(3 * (i % borrowed), BORROW_DAY);
+                    return 0;
+                } catch (LibraryException e) {
+                    return 1;
+                }
+            });
+            run("rejectBorrow(bad date, exception)", size, filter, i -> {
+                try {
+                    libraNet.borrowItem(1 + 3 * (i % borrowed), "2026-02-30");
+                    return 0;
+                } catch (LibraryException e) {
+                    return 1;
+                }
+            });
+            run("rejectBorrow(tryBorrowItem)", size, filter,
+                    i -> libraNet.tryBorrowItem(3 * (i % borrowed), BORROW_DAY).ordinal());
+            run("rejectBorrow(bad date, tryBorrowItem)", size, filter,
+                    i -> libraNet.tryBorrowItem(1 + 3 * (i % borrowed), "2026-02-30").ordinal());
+            run("searchByTitle", size, filter, i -> libraNet.searchByTitle(TITLE_WORDS[i % TITLE_WORDS.length]).size());
+            run("searchByTitle(infix)", size, filter, i -> libraNet.searchByTitle("ard").size());
+            // Distinct queries each time, so every search misses the cache
+            run("searchByTitle(miss)", size, filter,
+                    i -> libraNet.searchByTitle(TITLE_WORDS[i % TITLE_WORDS.length] + " " + i % size).size());
+            // First page of an uncached query, and the first streamed match of one
+            run("searchByTitle(miss, page of 50)", size, filter, i -> libraNet.searchByTitle(
+                    TITLE_WORDS[i % TITLE_WORDS.length] + " " + i % size, SearchPage.FIRST, 50).getItems().size());
+            run("streamByTitle(miss, first)", size, filter, i -> libraNet.streamByTitle(
+                    TITLE_WORDS[i % TITLE_WORDS.length] + " " + i % size).findFirst().map(LibraryItem::getId).orElse(-1));
+            run("searchByAuthor", size, filter, i -> libraNet.searchByAuthor(LAST_NAMES[i % LAST_NAMES.length]).size());
+            run("searchByAuthor(infix)", size, filter, i -> libraNet.searchByAuthor("ald").size());
+            // Replaces an item with a copy while the search cache is full, so every
+            // cached query is checked against the old and new text
+            run("addItem(replace)", size, filter, i -> {
+                libraNet.addItem(copyOf(libraNet.getItem(ids[i & mask])));
+                return libraNet.size();
+            });
+            run("searchByType", size, filter, i -> libraNet.searchByType(Audiobook.class).size());
+            // "Available audiobooks by an author under 6 hours", planned and chained by hand
+            run("query(author+type+available+duration)", size, filter, i -> libraNet.query(new CatalogQuery()
+                    .authorContains(LAST_NAMES[i % LAST_NAMES.length]).ofType(Audiobook.class).available()
+                    .durationBetween(0, 6)).size());
+            run("query(chained searches)", size, filter, i -> {
+                int count = 0;
+                for (LibraryItem item : libraNet.searchByAuthor(LAST_NAMES[i % LAST_NAMES.length])) {
+                    if (item instanceof Audiobook && item.checkAvailability() && ((Audiobook) item).getDuration() <= 6) {
+                        count++;
+                    }
+                }
+                return count;
+            });
+            run("getAvailableItems", size, filter, i -> libraNet.getAvailableItems().size());
+            run("getTotalFines", size, filter, i -> (long) libraNet.getTotalFines());
+            // The loans in buildCatalog all fall due on one day, so this day has none overdue
+            LocalDate loanDay = LocalDate.ofEpochDay(BORROW_DAY);
+            run("getOverdueItems(none)", size, filter, i -> libraNet.getOverdueItems(loanDay).size());
+            run("projectedFines", size, filter, i -> (long) libraNet.projectedFines(loanDay.plusDays(30)));
+            StringBuilder line = new StringBuilder(128);
+            run("LibraryItem.appendTo", size, filter, i -> {
+                line.setLength(0);
+                return libraNet.getItem(ids[i & mask]).appendTo(line).length();
+            });
+            run("LibraryItem.toString", size, filter, i -> libraNet.getItem(ids[i & mask]).toString().length());
+            run("displayAllItems", size, filter, i -> {
+                PrintStream console = System.out;
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                try {
+                    libraNet.displayAllItems();
+                } finally {
+                    System.setOut(console);
+                }
+                return 1;
+            });
+            int pages = Math.max(1, size / 50);
+            run("displayItems(page of 50)", size, filter, i -> {
+                PrintStream console = System.out;
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                try {
+                    return libraNet.displayItems(50 * (i % pages), 50);
+                } finally {
+                    System.setOut(console);
+                }
+            });
+
+            // A third of the catalog on loan, falling due over a month; each
+            // advance moves the clock one day and fires that day's events
+            int loans = Math.max(1, size / 3);
+            SimulatedClock clock = new SimulatedClock(loanDay);
+            DueDateScheduler dueScheduler = new DueDateScheduler(clock, 3, new DueDateListener() { }, false);
+            dueScheduler.ensureCapacity(loans);
+            run("dueScheduler(schedule+cancel)", size, filter, i -> {
+                int slot = i % loans;
+                dueScheduler.schedule(slot, slot, returnDay + i % 4096);
+                dueScheduler.cancel(slot);
+                return slot;
+            });
+            for (int slot = 0; slot < loans; slot++) {
+                dueScheduler.schedule(slot, slot, returnDay + slot % 30);
+            }
+            run("dueScheduler(advance day)", size, filter, i -> {
+                clock.advanceDays(1);
+                return dueScheduler.advance();
+            });
+            libraNet.attachScheduler(new DueDateScheduler(new SimulatedClock(loanDay), 3, new DueDateListener() { }, false));
+            run("borrowItem+returnItem(scheduler)", size, filter, i -> {
+                int id = ids[i & mask];
+                LibraryItem item = libraNet.getItem(id);
+                if (!item.checkAvailability()) {
+                    return 0;
+                }
+                libraNet.borrowItem(id, BORROW_DAY);
+                return (long) libraNet.returnItem(id, returnDay);
+            });
+        }
+
+        for (int threads : new int[] {1, 4, 16, 64}) {
+            runItemState("itemState(CAS)", threads, filter, true);
+            runItemState("itemState(synchronized)", threads, filter, false);
+        }
+        for (int clients : new int[] {16, 256, 1024}) {
+            runHttp("http(get+borrow+return)", clients, filter);
+        }
+    }
+
+    // Borrows and returns a small, contended set of items from many threads through
+    // every circulation path, while more items are added and listings run. Then
+    // each item's state must match the borrows and returns that succeeded on it,
+    // the counts, listings and due-date index must agree with the item states,
+    // and the fine ledger must hold exactly the fines the returns reported.
+    static void stress(int threads, int operations) throws Exception {
+        int itemCount = 256;
+        LibraNet libraNet = LibraNet.concurrent();
+        for (int id = 0; id < itemCount / 2; id++) {
+            libraNet.addItem(new Book(id, "Stress " + id, "Author " + id % 7, 100));
+        }
+        // Successful borrows minus successful returns, per item, and fines in paise
+        AtomicIntegerArray outstanding = new AtomicIntegerArray(itemCount);
+        LongAdder reportedFines = new LongAdder();
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int seed = t;
+                workers.add(executor.submit(() -> {
+                    Random random = new Random(seed);
+                    CirculationResults results = new CirculationResults();
+                    int[] stack = new int[4];
+                    for (int k = 0; k < operations; k++) {
+                        if (seed == 0 && k < itemCount / 2) {
+                            // The second half of the items arrives while the first circulates
+                            libraNet.addItem(new Audiobook(itemCount / 2 + k, "Stress late " + k, "Narrator", 1.5));
+                            continue;
+                        }
+                        int id = random.nextInt(itemCount);
+                        int day = BORROW_DAY + random.nextInt(3 * LibraryItem.LOAN_PERIOD_DAYS);
+                        try {
+                            switch (random.nextInt(6)) {
+                                case 0:
+                                    libraNet.borrowItem(id, day);
+                                    outstanding.incrementAndGet(id);
+                                    break;
+                                case 1:
+                                    reportedFines.add(Math.round(libraNet.returnItem(id, day) * 100));
+                                    outstanding.decrementAndGet(id);
+                                    break;
+                                case 2:
+                                    if (libraNet.tryBorrowItem(id, day) == CirculationStatus.OK) {
+                                        outstanding.incrementAndGet(id);
+                                    }
+                                    if (libraNet.tryReturnItem(id, day, results) == CirculationStatus.OK) {
+                                        reportedFines.add(Math.round(results.fine(0) * 100));
+                                        outstanding.decrementAndGet(id);
+                                    }
+                                    break;
+                                case 3:
+                                    // Called on the item, which hands it to the catalog
+                                    LibraryItem item = libraNet.getItem(id);
+                                    if (item != null && random.nextBoolean()) {
+                                        item.borrowItem(day);
+                                        outstanding.incrementAndGet(id);
+                                    } else if (item != null) {
+                                        reportedFines.add(Math.round(item.returnItem(day) * 100));
+                                        outstanding.decrementAndGet(id);
+                                    }
+                                    break;
+                                default:
+                                    for (int s = 0; s < stack.length; s++) {
+                                        stack[s] = random.nextInt(itemCount);
+                                    }
+                                    boolean borrow = random.nextBoolean();
+                                    LocalDate date = LocalDate.ofEpochDay(day);
+                                    if (borrow) {
+                                        libraNet.borrowItems(stack, date, results);
+                                    } else {
+                                        libraNet.returnItems(stack, date, results);
+                                    }
+                                    for (int s = 0; s < stack.length; s++) {
+                                        if (results.status(s) == CirculationStatus.OK) {
+                                            outstanding.addAndGet(stack[s], borrow ? 1 : -1);
+                                            reportedFines.add(Math.round(results.fine(s) * 100));
+                                        }
+                                    }
+                            }
+                        } catch (LibraryException e) {
+                            // Unavailable, not borrowed or not added yet
+                        }
+                        if (k % 4096 == 0) {
+                            sink += libraNet.getBorrowedItems().size() + libraNet.searchByTitle("stress").size();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        List<String> failures = new ArrayList<>();
+        int borrowed = 0;
+        for (int id = 0; id < itemCount; id++) {
+            boolean out = !libraNet.getItem(id).checkAvailability();
+            borrowed += out ? 1 : 0;
+            if (outstanding.get(id) != (out ? 1 : 0)) {
+                failures.add("item " + id + " is " + (out ? "borrowed" : "available") + " after "
+                        + outstanding.get(id) + " more successful borrows than returns");
+            }
+        }
+        if (libraNet.countBorrowed() != borrowed || libraNet.getBorrowedItems().size() != borrowed
+                || libraNet.getAvailableItems().size() != itemCount - borrowed) {
+            failures.add("counts and listings disagree with the " + borrowed + " borrowed items: countBorrowed "
+                    + libraNet.countBorrowed() + ", getBorrowedItems " + libraNet.getBorrowedItems().size()
+                    + ", getAvailableItems " + libraNet.getAvailableItems().size());
+        }
+        int indexed = libraNet.getDueBetween(LocalDate.ofEpochDay(BORROW_DAY),
+                LocalDate.ofEpochDay(BORROW_DAY + 4 * LibraryItem.LOAN_PERIOD_DAYS)).size();
+        if (indexed != borrowed) {
+            failures.add("due-date index holds " + indexed + " loans for " + borrowed + " borrowed items");
+        }
+        long ledger = Math.round(libraNet.getTotalFines() * 100);
+        if (ledger != reportedFines.sum()) {
+            failures.add("fine ledger holds " + ledger / 100.0 + " rs but returns reported "
+                    + reportedFines.sum() / 100.0 + " rs");
+        }
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("Stress check failed:\n" + String.join("\n", failures));
+        }
+        System.out.printf("Stress check passed: %d threads x %d operations in %d ms, %d items on loan, %.2f rs in fines%n",
+                threads, operations, (System.nanoTime() - start) / 1_000_000, borrowed, ledger / 100.0);
+    }
+
+    static LibraNet buildCatalog(int size) throws LibraryException {
+        return buildCatalog(new LibraNet(), size);
+    }
+
+    static LibraNet buildCatalog(LibraNet libraNet, int size) throws LibraryException {
+        Random random = new Random(size);
+        for (int id = 0; id < size; id++) {
+            String title = TITLE_WORDS[random.nextInt(TITLE_WORDS.length)] + " "
+                    + TITLE_WORDS[random.nextInt(TITLE_WORDS.length)] + " " + id;
+            String author = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+                    + LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+            switch (id % 10) {
+                case 7:
+                case 8:
+                    libraNet.addItem(new Audiobook(id, title, author, 1 + random.nextInt(2000) / 100.0));
+                    break;
+                case 9:
+                    libraNet.addItem(new EMagazine(id, title, author, 1 + random.nextInt(500)));
+                    break;
+                default:
+                    libraNet.addItem(new Book(id, title, author, 50 + random.nextInt(900)));
+            }
+        }
+        // A tenth of the catalog has been returned late once and a third is on loan
+        for (int id = 1; id < size; id += 10) {
+            libraNet.borrowItem(id, BORROW_DAY);
+            libraNet.returnItem(id, BORROW_DAY + 15 + id % 30);
+        }
+        for (int id = 0; id < size; id += 3) {
+            libraNet.borrowItem(id, BORROW_DAY);
+        }
+        return libraNet;
+    }
+
+    // A new item of the same class and loan state, so replacing leaves the catalog
+    // the later benchmarks measure unchanged
+    private static LibraryItem copyOf(LibraryItem item) {
+        LibraryItem copy;
+        if (item.getClass() == Book.class) {
+            copy = new Book(item.getId(), item.getTitle(), item.getAuthor(), ((Book) item).getPageCount());
+        } else if (item.getClass() == Audiobook.class) {
+            copy = new Audiobook(item.getId(), item.getTitle(), item.getAuthor(), ((Audiobook) item).getDuration());
+        } else if (item.getClass() == EMagazine.class) {
+            EMagazine magazine = (EMagazine) item;
+            EMagazine copied = new EMagazine(item.getId(), item.getTitle(), item.getAuthor(), magazine.getIssueNumber());
+            copied.restoreArchived(magazine.isArchived());
+            copy = copied;
+        } else {
+            throw new IllegalArgumentException("Cannot copy items of type " + item.getClass().getName());
+        }
+        copy.restoreState(item.checkAvailability(), item.getDueEpochDay());
+        return copy;
+    }
+
+    private static void run(String name, int size, String filter, Operation operation) throws Exception {
+        if (!name.matches(filter)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long ops = 0;
+        long nanos = 0;
+        long bytes = 0;
+        long result = 0;
+        for (int iteration = 0; iteration < WARMUP_ITERATIONS + MEASURED_ITERATIONS; iteration++) {
+            long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            long end = start + ITERATION_NANOS;
+            int count = 0;
+            long now;
+            do {
+                result += operation.run(count++);
+                now = System.nanoTime();
+            } while (now < end);
+            if (iteration >= WARMUP_ITERATIONS) {
+                ops += count;
+                nanos += now - start;
+                bytes += threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            }
+        }
+        sink = result;
+        System.out.printf("%-40s %10d %14.1f %14.1f %12.1f%n",
+                name, size, ops * 1e9 / nanos, (double) nanos / ops, (double) bytes / ops);
+    }
+
+    // Borrow and return on a handful of shared items, comparing the lock-free
+    // LibraryItem state word with a synchronized equivalent
+    private static void runItemState(String name, int threadCount, String filter, boolean lockFree)
+            throws Exception {
+        if (!name.matches(filter)) {
+            return;
+        }
+        int sharedItems = 8;
+        LibraryItem[] casItems = new LibraryItem[sharedItems];
+        SynchronizedItemState[] lockedItems = new SynchronizedItemState[sharedItems];
+        for (int i = 0; i < sharedItems; i++) {
+            casItems[i] = new Book(i, "t", "a", 1);
+            lockedItems[i] = new SynchronizedItemState();
+        }
+
+        for (int iteration = 0; iteration < WARMUP_ITERATIONS + MEASURED_ITERATIONS; iteration++) {
+            long deadline = System.nanoTime() + ITERATION_NANOS;
+            long[] counts = new long[threadCount];
+            Thread[] workers = new Thread[threadCount];
+            for (int t = 0; t < threadCount; t++) {
+                int worker = t;
+                workers[t] = new Thread(() -> {
+                    long done = 0;
+                    long fines = 0;
+                    for (int i = worker; System.nanoTime() < deadline; i++) {
+                        int slot = i % sharedItems;
+                        try {
+                            if (lockFree) {
+                                casItems[slot].borrowItem(BORROW_DAY);
+                                fines += (long) casItems[slot].returnItem(BORROW_DAY + 20);
+                            } else {
+                                lockedItems[slot].borrowItem(BORROW_DAY);
+                                fines += (long) lockedItems[slot].returnItem(BORROW_DAY + 20);
+                            }
+                        } catch (LibraryException e) {
+                            // Another thread holds the item; rejected attempts still count
+                        }
+                        done++;
+                    }
+                    counts[worker] = done;
+                    sink = fines;
+                });
+            }
+            long start = System.nanoTime();
+            for (Thread worker : workers) {
+                worker.start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            long nanos = System.nanoTime() - start;
+            if (iteration == WARMUP_ITERATIONS + MEASURED_ITERATIONS - 1) {
+                long ops = Arrays.stream(counts).sum();
+                System.out.printf("%-40s %10s %14.1f %14.1f %12s%n",
+                        name, threadCount + " thr", ops * 1e9 / nanos, (double) nanos * threadCount / ops, "-");
+            }
+        }
+    }
+
+    // Load test of the JSON API on the loopback address: each client keeps one
+    // request in flight, cycling through an item lookup, a borrow and a return
+    // of its own item. ns/op is the mean latency of a request.
+    private static void runHttp(String name, int clients, String filter) throws Exception {
+        if (!name.matches(filter)) {
+            return;
+        }
+        LibraNet libraNet = buildCatalog(LibraNet.concurrent(), 100_000);
+        HttpClient client = HttpClient.newHttpClient();
+        String borrowDate = LocalDate.ofEpochDay(BORROW_DAY).toString();
+        String returnDate = LocalDate.ofEpochDay(BORROW_DAY + LibraryItem.LOAN_PERIOD_DAYS).toString();
+        try (LibraNetHttpServer server = new LibraNetHttpServer(libraNet,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            server.start();
+            String base = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+            for (int iteration = 0; iteration < WARMUP_ITERATIONS + MEASURED_ITERATIONS; iteration++) {
+                long deadline = System.nanoTime() + ITERATION_NANOS;
+                LongAdder completed = new LongAdder();
+                LongAdder failed = new LongAdder();
+                CountDownLatch done = new CountDownLatch(clients);
+                long start = System.nanoTime();
+                for (int c = 0; c < clients; c++) {
+                    // Items not a multiple of 3 start out available in buildCatalog
+                    int id = 3 * c + 1;
+                    HttpRequest[] cycle = {
+                        HttpRequest.newBuilder(URI.create(base + "/items/" + id)).build(),
+                        HttpRequest.newBuilder(URI.create(base + "/items/" + id + "/borrow?date=" + borrowDate))
+                                .POST(HttpRequest.BodyPublishers.noBody()).build(),
+                        HttpRequest.newBuilder(URI.create(base + "/items/" + id + "/return?date=" + returnDate))
+                                .POST(HttpRequest.BodyPublishers.noBody()).build(),
+                    };
+                    sendHttp(client, cycle, 0, deadline, completed, failed, done);
+                }
+                done.await();
+                long nanos = System.nanoTime() - start;
+                if (failed.sum() > 0) {
+                    throw new IllegalStateException(failed.sum() + " HTTP requests failed");
+                }
+                if (iteration == WARMUP_ITERATIONS + MEASURED_ITERATIONS - 1) {
+                    long ops = completed.sum();
+                    System.out.printf("%-40s %10s %14.1f %14.1f %12s%n",
+                            name, clients + " cli", ops * 1e9 / nanos, (double) nanos * clients / ops, "-");
+                }
+            }
+        }
+    }
+
+    private static void sendHttp(HttpClient client, HttpRequest[] cycle, int step, long deadline,
+            LongAdder completed, LongAdder failed, CountDownLatch done) {
+        client.sendAsync(cycle[step % cycle.length], HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, error) -> {
+                    if (error != null || response.statusCode() != 200) {
+                        failed.increment();
+                    }
+                    completed.increment();
+                    // Finish the cycle past the deadline so the next iteration
+                    // starts with the item back on the shelf
+                    if (error == null && ((step + 1) % cycle.length != 0 || System.nanoTime() < deadline)) {
+                        sendHttp(client, cycle, step + 1, deadline, completed, failed, done);
+                    } else {
+                        done.countDown();
+                    }
+                });
+    }
+
+    // Lock-based reference for the itemState benchmark
+    static final class SynchronizedItemState {
+        private boolean available = true;
+        private int dueEpochDay = LibraryItem.NO_DUE_DATE;
+
+        synchronized void borrowItem(int borrowEpochDay) throws LibraryException {
+            if (!available) {
+                throw new LibraryException("Item is not available for borrowing", false);
+            }
+            dueEpochDay = borrowEpochDay + LibraryItem.LOAN_PERIOD_DAYS;
+            available = false;
+        }
+
+        synchronized double returnItem(int returnEpochDay) throws LibraryException {
+            if (available) {
+                throw new LibraryException("Item was not borrowed", false);
+            }
+            available = true;
+            long daysOverdue = (long) returnEpochDay - dueEpochDay;
+            return daysOverdue > 0 ? daysOverdue * LibraryItem.DEFAULT_FINE_RATE : 0.0;
+        }
+    }
+}